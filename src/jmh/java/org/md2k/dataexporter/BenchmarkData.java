@@ -0,0 +1,149 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.google.gson.JsonObject;
+import org.md2k.datakitapi.datatype.*;
+import org.md2k.datakitapi.source.datasource.DataSource;
+import org.md2k.datakitapi.source.datasource.DataSourceBuilder;
+import org.md2k.datakitapi.source.platform.PlatformBuilder;
+
+import java.util.Random;
+
+/**
+ * Deterministic sample data shared by the benchmarks
+ */
+public class BenchmarkData {
+
+    public static final long START_TIME = 1500000000000L;
+
+    /**
+     * Create a sample of a DataType class
+     *
+     * @param type      simple name of the DataType class
+     * @param width     number of values for array types
+     * @param random    source of sample values
+     * @param timestamp sample timestamp
+     * @return DataType object
+     */
+    public static DataType sample(String type, int width, Random random, long timestamp) {
+        switch (type) {
+            case "DataTypeBoolean":
+                return new DataTypeBoolean(timestamp, random.nextBoolean());
+            case "DataTypeBooleanArray":
+                boolean[] booleans = new boolean[width];
+                for (int i = 0; i < width; i++) {
+                    booleans[i] = random.nextBoolean();
+                }
+                return new DataTypeBooleanArray(timestamp, booleans);
+            case "DataTypeByte":
+                return new DataTypeByte(timestamp, (byte) random.nextInt());
+            case "DataTypeByteArray":
+                byte[] bytes = new byte[width];
+                random.nextBytes(bytes);
+                return new DataTypeByteArray(timestamp, bytes);
+            case "DataTypeDouble":
+                return new DataTypeDouble(timestamp, random.nextGaussian());
+            case "DataTypeDoubleArray":
+                double[] doubles = new double[width];
+                for (int i = 0; i < width; i++) {
+                    doubles[i] = random.nextGaussian();
+                }
+                return new DataTypeDoubleArray(timestamp, doubles);
+            case "DataTypeFloat":
+                return new DataTypeFloat(timestamp, (float) random.nextGaussian());
+            case "DataTypeFloatArray":
+                float[] floats = new float[width];
+                for (int i = 0; i < width; i++) {
+                    floats[i] = (float) random.nextGaussian();
+                }
+                return new DataTypeFloatArray(timestamp, floats);
+            case "DataTypeInt":
+                return new DataTypeInt(timestamp, random.nextInt());
+            case "DataTypeIntArray":
+                int[] ints = new int[width];
+                for (int i = 0; i < width; i++) {
+                    ints[i] = random.nextInt();
+                }
+                return new DataTypeIntArray(timestamp, ints);
+            case "DataTypeLong":
+                return new DataTypeLong(timestamp, random.nextLong());
+            case "DataTypeLongArray":
+                long[] longs = new long[width];
+                for (int i = 0; i < width; i++) {
+                    longs[i] = random.nextLong();
+                }
+                return new DataTypeLongArray(timestamp, longs);
+            case "DataTypeString":
+                return new DataTypeString(timestamp, "LOG " + random.nextInt());
+            case "DataTypeStringArray":
+                String[] strings = new String[width];
+                for (int i = 0; i < width; i++) {
+                    strings[i] = Integer.toString(random.nextInt());
+                }
+                return new DataTypeStringArray(timestamp, strings);
+            case "DataTypeJSONObject":
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < width; i++) {
+                    object.addProperty("question_" + i, random.nextInt(5));
+                }
+                return new DataTypeJSONObject(timestamp, object);
+            default:
+                throw new IllegalArgumentException("Unknown DataType: " + type);
+        }
+    }
+
+    /**
+     * Create an array of samples of a DataType class with increasing timestamps
+     *
+     * @param type  simple name of the DataType class
+     * @param width number of values for array types
+     * @param rows  number of samples
+     * @return array of DataType objects
+     */
+    public static DataType[] samples(String type, int width, int rows) {
+        Random random = new Random(42);
+        DataType[] result = new DataType[rows];
+        for (int i = 0; i < rows; i++) {
+            result[i] = sample(type, width, random, START_TIME + i * 31);
+        }
+        return result;
+    }
+
+    /**
+     * Create a DataSource similar to the ones stored by DataKit
+     *
+     * @param type DataSource type
+     * @return DataSource object
+     */
+    public static DataSource dataSource(String type) {
+        return new DataSourceBuilder().setType(type).setId(type)
+                .setPlatform(new PlatformBuilder().setType("PHONE").setMetadata("NAME", "Phone").build())
+                .setMetadata("FREQUENCY", "32").build();
+    }
+}
@@ -0,0 +1,132 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.datakitapi.datatype.DataType;
+import org.md2k.datakitapi.datatype.DataTypeDoubleArray;
+import org.md2k.datakitapi.datatype.DataTypeInt;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming CSVFormatter against DataTypeConverter.dataTypeToString on the same samples
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSVFormatterBenchmark {
+
+    private static final int ROWS = 1024;
+
+    private DataType[] accelerometer;
+    private DataType[] battery;
+    private CSVFormatter formatter;
+    private CountingWriter writer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        accelerometer = new DataType[ROWS];
+        battery = new DataType[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            long timestamp = 1500000000000L + i * 31;
+            accelerometer[i] = new DataTypeDoubleArray(timestamp, new double[]{random.nextGaussian(), random.nextGaussian(), random.nextGaussian()});
+            battery[i] = new DataTypeInt(timestamp, random.nextInt(100));
+        }
+        formatter = new CSVFormatter();
+        writer = new CountingWriter();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long accelerometerDataTypeToString() throws IOException {
+        for (DataType dt : accelerometer) {
+            writer.write(DataTypeConverter.dataTypeToString(dt) + "\n");
+        }
+        return writer.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long accelerometerCSVFormatter() throws IOException {
+        for (DataType dt : accelerometer) {
+            formatter.write(dt, writer);
+        }
+        return writer.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long batteryDataTypeToString() throws IOException {
+        for (DataType dt : battery) {
+            writer.write(DataTypeConverter.dataTypeToString(dt) + "\n");
+        }
+        return writer.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long batteryCSVFormatter() throws IOException {
+        for (DataType dt : battery) {
+            formatter.write(dt, writer);
+        }
+        return writer.count;
+    }
+
+    /**
+     * Writer that discards its input and only counts characters
+     */
+    static class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str) {
+            count += str.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
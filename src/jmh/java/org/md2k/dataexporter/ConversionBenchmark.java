@@ -0,0 +1,123 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
+import org.md2k.cerebralcortex.TSV;
+import org.md2k.datakitapi.datatype.DataType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion throughput, in rows per second, per DataType class and array width: CSV lines, JSON value arrays, TSV
+ * entries serialized through Gson as the JSON output did before, and data points written directly to a compact
+ * JsonWriter as the JSON output does now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"DataTypeBoolean", "DataTypeBooleanArray", "DataTypeByte", "DataTypeByteArray", "DataTypeDouble",
+            "DataTypeDoubleArray", "DataTypeFloat", "DataTypeFloatArray", "DataTypeInt", "DataTypeIntArray",
+            "DataTypeLong", "DataTypeLongArray", "DataTypeString", "DataTypeStringArray", "DataTypeJSONObject"})
+    public String sampleType;
+
+    @Param({"1", "3", "12"})
+    public int width;
+
+    private DataType[] samples;
+    private DataTypeHandler handler;
+    private CSVFormatter formatter;
+    private CSVFormatterBenchmark.CountingWriter writer;
+    private JsonWriter jsonWriter;
+    private JsonWriter compactWriter;
+    private Gson gson;
+
+    @Setup
+    public void setup() throws IOException {
+        samples = BenchmarkData.samples(sampleType, width, ROWS);
+        handler = DataTypeHandler.forType(samples[0].getClass());
+        formatter = new CSVFormatter();
+        writer = new CSVFormatterBenchmark.CountingWriter();
+        jsonWriter = new JsonWriter(writer);
+        jsonWriter.setIndent("  ");
+        jsonWriter.beginArray();
+        gson = new GsonBuilder().setPrettyPrinting().create();
+        compactWriter = DataExport.createJSONDataWriter(new JsonWriter(writer));
+        compactWriter.beginArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long csv() throws IOException {
+        for (DataType dt : samples) {
+            formatter.write(dt, writer);
+        }
+        return writer.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public JsonArray json() {
+        JsonArray last = null;
+        for (DataType dt : samples) {
+            last = handler.toJSON(dt);
+        }
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long tsvGson() {
+        for (DataType dt : samples) {
+            TSV entry = new TSV(dt.getDateTime(), handler.toJSON(dt));
+            gson.toJson(entry, TSV.class, jsonWriter);
+        }
+        return writer.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long jsonWriter() throws IOException {
+        for (DataType dt : samples) {
+            DataExport.writeJSONDataPoint(compactWriter, dt, handler);
+        }
+        return writer.count;
+    }
+}
@@ -0,0 +1,87 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.cerebralcortex.StudyInfo;
+import org.md2k.cerebralcortex.UserInfo;
+import org.md2k.datakitapi.datatype.DataType;
+import org.md2k.datakitapi.source.datasource.DataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to generate one gzipped JSON publish chunk with DataExport.generateGzipJSON, per chunk size, array width and
+ * JSON layout
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GzipJSONBenchmark {
+
+    @Param({"DataTypeDoubleArray", "DataTypeInt"})
+    public String sampleType;
+
+    @Param({"1", "3", "12"})
+    public int width;
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean prettyPrint;
+
+    private List<DataType> chunk;
+    private UserInfo userInfo;
+    private StudyInfo studyInfo;
+    private DataSource dataSource;
+
+    @Setup
+    public void setup() {
+        chunk = Arrays.asList(BenchmarkData.samples(sampleType, width, rows));
+        userInfo = new UserInfo();
+        userInfo.user_id = "user";
+        userInfo.uuid = "4f0c1a3e-0000-0000-0000-000000000000";
+        studyInfo = new StudyInfo();
+        studyInfo.id = "study";
+        studyInfo.name = "Benchmark Study";
+        dataSource = BenchmarkData.dataSource("ACCELEROMETER");
+    }
+
+    @Benchmark
+    public int generateGzipJSON() {
+        List<List<DataType>> batches = Arrays.asList(chunk);
+        ByteOutputArray boa = DataExport.generateGzipJSON(userInfo, studyInfo, dataSource, batches.iterator(), true, prettyPrint);
+        return boa.data.length;
+    }
+}
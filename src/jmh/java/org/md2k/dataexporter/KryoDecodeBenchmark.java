@@ -0,0 +1,92 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.md2k.datakitapi.datatype.DataType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode throughput, in rows per second, of DataKit blobs per DataType class, with a plain Kryo instance and with
+ * the KryoFactory serializers.  The blobs are written by a plain Kryo instance, as DataKit does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KryoDecodeBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"plain", "registered"})
+    public String kryoType;
+
+    @Param({"DataTypeBoolean", "DataTypeBooleanArray", "DataTypeByte", "DataTypeByteArray", "DataTypeDouble",
+            "DataTypeDoubleArray", "DataTypeFloat", "DataTypeFloatArray", "DataTypeInt", "DataTypeIntArray",
+            "DataTypeLong", "DataTypeLongArray", "DataTypeString", "DataTypeStringArray", "DataTypeJSONObject",
+            "DataSource"})
+    public String sampleType;
+
+    @Param({"1", "3", "12"})
+    public int width;
+
+    private byte[][] blobs;
+    private Kryo kryo;
+    private Input input;
+
+    @Setup
+    public void setup() {
+        Kryo writer = new Kryo();
+        blobs = new byte[ROWS][];
+        DataType[] samples = "DataSource".equals(sampleType) ? null : BenchmarkData.samples(sampleType, width, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            Output output = new Output(256, -1);
+            writer.writeClassAndObject(output, samples == null ? BenchmarkData.dataSource("ACCELEROMETER") : samples[i]);
+            blobs[i] = output.toBytes();
+        }
+        kryo = "plain".equals(kryoType) ? new Kryo() : KryoFactory.create();
+        input = new Input();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object decode() {
+        Object last = null;
+        for (byte[] blob : blobs) {
+            input.setBuffer(blob);
+            last = kryo.readClassAndObject(input);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,85 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.datakitapi.datatype.DataType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Time to gzip 16 MB of CSV output with GZIPOutputStream and with ParallelGZIPOutputStream on all processors
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelGzipBenchmark {
+
+    private static final int SIZE = 16 * 1024 * 1024;
+    private static final int WRITE_SIZE = 8192;
+
+    @Param({"gzip", "parallel"})
+    public String compressor;
+
+    private byte[] csv;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(SIZE + 1024);
+        Writer writer = new OutputStreamWriter(bos, "utf-8");
+        CSVFormatter formatter = new CSVFormatter();
+        DataType[] samples = BenchmarkData.samples("DataTypeDoubleArray", 3, 100000);
+        while (bos.size() < SIZE) {
+            for (DataType dt : samples) {
+                formatter.write(dt, writer);
+            }
+            writer.flush();
+        }
+        csv = bos.toByteArray();
+    }
+
+    @Benchmark
+    public int compress() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(SIZE / 2);
+        OutputStream out = "gzip".equals(compressor) ? new GZIPOutputStream(bos) : new ParallelGZIPOutputStream(bos);
+        for (int off = 0; off < SIZE; off += WRITE_SIZE) {
+            out.write(csv, off, WRITE_SIZE);
+        }
+        out.close();
+        return bos.size();
+    }
+}
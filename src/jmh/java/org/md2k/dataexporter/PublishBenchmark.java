@@ -0,0 +1,124 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to publish one synthetic data stream in chunks to a local stand-in for the Cerebral Cortex webservice that
+ * answers every upload after a fixed latency, per upload concurrency
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PublishBenchmark {
+
+    private static final String STREAMS = "ACCELEROMETER:DataTypeDoubleArray:32:3";
+    private static final double HOURS = 1;
+    private static final int STREAM_ID = 3;
+
+    @Param({"1", "2", "4", "8"})
+    public int concurrency;
+
+    @Param({"10000"})
+    public int chunkRows;
+
+    @Param({"50"})
+    public int latencyMs;
+
+    private File database;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String url;
+    private ChunkUploader uploader;
+    private DataExport dataExport;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = File.createTempFile("publish", ".db");
+        new SyntheticDataKit().generate(database.getPath(), STREAMS, HOURS, 1);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) >= 0) {
+                    // discard the upload
+                }
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] response = "{}".getBytes("utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+
+        uploader = new ChunkUploader(database.getPath(), concurrency);
+        dataExport = new DataExport(database.getPath());
+        dataExport.setUploader(uploader);
+        dataExport.setPublishBufferSize(chunkRows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataExport.close();
+        uploader.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        database.delete();
+    }
+
+    @Benchmark
+    public boolean publish() {
+        return dataExport.publishGzipJSONData(url, STREAM_ID);
+    }
+}
@@ -0,0 +1,243 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.gson.JsonObject;
+import org.apache.commons.cli.*;
+import org.md2k.datakitapi.datatype.DataType;
+import org.md2k.datakitapi.datatype.DataTypeJSONObject;
+import org.md2k.datakitapi.source.application.ApplicationBuilder;
+import org.md2k.datakitapi.source.datasource.DataSource;
+import org.md2k.datakitapi.source.datasource.DataSourceBuilder;
+import org.md2k.datakitapi.source.platform.Platform;
+import org.md2k.datakitapi.source.platform.PlatformBuilder;
+
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates a synthetic DataKit database for load tests and benchmarks.  The file has the DataKit schema, with
+ * DataSource and DataType blobs encoded by a plain Kryo instance exactly as DataKit stores them.  Rows of all streams
+ * are interleaved in time order.  The output only depends on the stream mix, the duration and the seed.
+ */
+public class SyntheticDataKit {
+
+    public static final String DEFAULT_STREAMS = "ACCELEROMETER:DataTypeDoubleArray:32:3,ECG:DataTypeDoubleArray:64:1,SURVEY:DataTypeJSONObject:0.0003:8";
+
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * One synthetic data stream: a DataSource type producing samples of a DataType class at a fixed rate
+     */
+    static class Stream {
+        final String type;
+        final String dataType;
+        final double frequency;
+        final int width;
+        int dsId;
+        long count = 0;
+
+        Stream(String spec) {
+            String[] parts = spec.split(":");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Stream must be TYPE:DataTypeClass:frequency:width, was " + spec);
+            }
+            type = parts[0];
+            dataType = parts[1];
+            frequency = Double.parseDouble(parts[2]);
+            width = Integer.parseInt(parts[3]);
+        }
+
+        long nextTime() {
+            return BenchmarkData.START_TIME + Math.round(count * 1000.0 / frequency);
+        }
+    }
+
+    private final Kryo kryo = new Kryo();
+    private final Output output = new Output(1024, -1);
+
+    /**
+     * Generate a database file
+     *
+     * @param filename output SQLite database file, replaced if it exists
+     * @param streams  comma separated stream mix: TYPE:DataTypeClass:frequency:width
+     * @param hours    duration of the recording
+     * @param seed     seed of the sample values
+     * @return number of data rows written
+     * @throws SQLException
+     */
+    public long generate(String filename, String streams, double hours, long seed) throws SQLException {
+        TimeZone.setDefault(TimeZone.getTimeZone("Etc/UTC"));
+        new File(filename).delete();
+
+        List<Stream> mix = new ArrayList<Stream>();
+        for (String spec : streams.split(",")) {
+            mix.add(new Stream(spec.trim()));
+        }
+        long endTime = BenchmarkData.START_TIME + Math.round(hours * 3600 * 1000);
+        Random random = new Random(seed);
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + filename);
+        long rows = 0;
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("PRAGMA journal_mode = OFF");
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("create table datasources (ds_id INTEGER PRIMARY KEY autoincrement, datasource_id TEXT, datasource_type TEXT, platform_id TEXT, platform_type TEXT, platformapp_id TEXT, platformapp_type TEXT, application_id TEXT, application_type TEXT, creation_time LONG, datasource BLOB not null)");
+            statement.execute("create table data (_id INTEGER PRIMARY KEY autoincrement, datasource_id TEXT not null, datetime LONG, sample BLOB not null, cc_sync INTEGER DEFAULT 0)");
+            connection.setAutoCommit(false);
+
+            Platform platform = new PlatformBuilder().setType("PHONE").setId("PHONE").setMetadata("NAME", "Phone").build();
+            int userId = insertDataSource(connection, "USER_INFO", platform);
+            int studyId = insertDataSource(connection, "STUDY_INFO", platform);
+            for (Stream stream : mix) {
+                stream.dsId = insertDataSource(connection, stream.type, platform);
+            }
+
+            PreparedStatement insert = connection.prepareStatement("insert into data (datasource_id, datetime, sample) values (?, ?, ?)");
+            JsonObject user = new JsonObject();
+            user.addProperty("user_id", "synthetic");
+            user.addProperty("uuid", new java.util.UUID(seed, seed).toString());
+            insertSample(insert, userId, new DataTypeJSONObject(BenchmarkData.START_TIME, user));
+            JsonObject study = new JsonObject();
+            study.addProperty("id", "synthetic");
+            study.addProperty("name", "Synthetic Study");
+            insertSample(insert, studyId, new DataTypeJSONObject(BenchmarkData.START_TIME, study));
+            insert.executeBatch();
+
+            while (true) {
+                Stream next = null;
+                for (Stream stream : mix) {
+                    if (next == null || stream.nextTime() < next.nextTime()) {
+                        next = stream;
+                    }
+                }
+                long timestamp = next.nextTime();
+                if (timestamp >= endTime) {
+                    break;
+                }
+                insertSample(insert, next.dsId, BenchmarkData.sample(next.dataType, next.width, random, timestamp));
+                next.count++;
+                if (++rows % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } finally {
+            connection.close();
+        }
+        return rows;
+    }
+
+    private int insertDataSource(Connection connection, String type, Platform platform) throws SQLException {
+        DataSource dataSource = new DataSourceBuilder().setType(type).setPlatform(platform)
+                .setApplication(new ApplicationBuilder().setType("org.md2k.synthetic").setId("org.md2k.synthetic").build())
+                .build();
+        PreparedStatement insert = connection.prepareStatement("insert into datasources (datasource_id, datasource_type, platform_id, platform_type, platformapp_id, platformapp_type, application_id, application_type, creation_time, datasource) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        insert.setString(1, null);
+        insert.setString(2, type);
+        insert.setString(3, platform.getId());
+        insert.setString(4, platform.getType());
+        insert.setString(5, null);
+        insert.setString(6, null);
+        insert.setString(7, "org.md2k.synthetic");
+        insert.setString(8, "org.md2k.synthetic");
+        insert.setLong(9, BenchmarkData.START_TIME);
+        insert.setBytes(10, encode(dataSource));
+        insert.executeUpdate();
+        insert.close();
+
+        ResultSet rs = connection.createStatement().executeQuery("select last_insert_rowid()");
+        rs.next();
+        return rs.getInt(1);
+    }
+
+    private void insertSample(PreparedStatement insert, int dsId, DataType sample) throws SQLException {
+        insert.setInt(1, dsId);
+        insert.setLong(2, sample.getDateTime());
+        insert.setBytes(3, encode(sample));
+        insert.addBatch();
+    }
+
+    private byte[] encode(Object object) {
+        output.clear();
+        kryo.writeClassAndObject(output, object);
+        return output.toBytes();
+    }
+
+    /**
+     * Main method
+     *
+     * @param args options to configure the generated database
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+
+        Option outputFile = new Option("o", "output", true, "SQLite database file to create");
+        outputFile.setRequired(true);
+        outputFile.setArgName("file");
+        options.addOption(outputFile);
+
+        Option streams = new Option("s", "streams", true, "stream mix TYPE:DataTypeClass:frequency:width,... (default " + DEFAULT_STREAMS + ")");
+        streams.setArgName("mix");
+        options.addOption(streams);
+
+        Option duration = new Option("d", "duration", true, "recording duration in hours (default 24)");
+        duration.setArgName("hours");
+        options.addOption(duration);
+
+        Option seed = new Option("r", "seed", true, "random seed (default 42)");
+        seed.setArgName("seed");
+        options.addOption(seed);
+
+        CommandLineParser parser = new DefaultParser();
+        try {
+            CommandLine line = parser.parse(options, args);
+            long start = System.currentTimeMillis();
+            long rows = new SyntheticDataKit().generate(line.getOptionValue("output"),
+                    line.getOptionValue("streams", DEFAULT_STREAMS),
+                    Double.parseDouble(line.getOptionValue("duration", "24")),
+                    Long.parseLong(line.getOptionValue("seed", "42")));
+            System.out.println("Rows: " + rows + " (" + new File(line.getOptionValue("output")).length() + " bytes, " + (System.currentTimeMillis() - start) + " ms)");
+        } catch (ParseException | IllegalArgumentException exp) {
+            System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SyntheticDataKit", options, true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
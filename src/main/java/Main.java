@@ -26,14 +26,33 @@
  */
 
 import org.apache.commons.cli.*;
+import org.md2k.dataexporter.BatchExport;
+import org.md2k.dataexporter.Checkpoint;
+import org.md2k.dataexporter.ChunkUploader;
+import org.md2k.dataexporter.ConnectionPool;
 import org.md2k.dataexporter.DataExport;
+import org.md2k.dataexporter.ExportMetrics;
+import org.md2k.dataexporter.JoinExport;
+import org.md2k.dataexporter.MetadataCatalog;
+import org.md2k.dataexporter.ParallelExport;
+import org.md2k.dataexporter.SingleScanExport;
+import org.md2k.dataexporter.TimeRange;
+import org.md2k.dataexporter.TimeRangeIndex;
+import org.md2k.dataexporter.UploadJournal;
+import org.md2k.dataexporter.WindowAggregator;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Main class to run DataExport
  */
 public class Main {
+
+    private static final int DEFAULT_PROGRESS_INTERVAL = 10;
+
     /**
      * Main method
      * @param args options to configure execution
@@ -42,10 +61,21 @@ public class Main {
 
         Options options = new Options();
 
+        OptionGroup input = new OptionGroup();
+        input.setRequired(true);
+
         Option databaseFile = new Option("d", "database", true, "mCerebrum SQLite Database File");
-        databaseFile.setRequired(true);
         databaseFile.setArgName("file");
-        options.addOption(databaseFile);
+        input.addOption(databaseFile);
+
+        Option batch = new Option(null, "batch", true, "export every .db file under this directory, or every file matching this glob, into a directory per database");
+        batch.setArgName("path");
+        input.addOption(batch);
+        options.addOptionGroup(input);
+
+        Option output = new Option("o", "output", true, "write the output files to this directory (default: working directory)");
+        output.setArgName("dir");
+        options.addOption(output);
 
         Option jsonFlag = new Option("j", "json", false, "enable JSON file output");
         options.addOption(jsonFlag);
@@ -53,9 +83,96 @@ public class Main {
         Option csvFlag = new Option("c", "csv", false, "enable CSV file output");
         options.addOption(csvFlag);
 
-//        Option publish = new Option("p", "publish", true, "configure publishing to webservice");
-//        publish.setArgName("URL");
-//        options.addOption(publish);
+        Option singleScan = new Option("s", "single-scan", false, "write all CSV files with a single pass over the data table");
+        options.addOption(singleScan);
+
+        Option pretty = new Option(null, "pretty", false, "indent JSON files and published data instead of writing compact JSON");
+        options.addOption(pretty);
+
+        Option gzip = new Option("z", "gzip", false, "compress CSV and JSON files with parallel gzip");
+        options.addOption(gzip);
+
+        Option threads = new Option("t", "threads", true, "number of data streams to export concurrently");
+        threads.setArgName("N");
+        options.addOption(threads);
+
+        Option from = new Option(null, "from", true, "export samples at or after this time (epoch milliseconds or ISO-8601, UTC by default)");
+        from.setArgName("time");
+        options.addOption(from);
+
+        Option to = new Option(null, "to", true, "export samples before this time (epoch milliseconds or ISO-8601, UTC by default)");
+        to.setArgName("time");
+        options.addOption(to);
+
+        Option resample = new Option(null, "resample", true, "write the count, mean, min, max and standard deviation of each window of this width instead of every sample (milliseconds, or a number followed by ms, s, m, h or d)");
+        resample.setArgName("window");
+        options.addOption(resample);
+
+        Option join = new Option(null, "join", true, "write these comma separated data streams to one CSV file aligned on the timestamps of the first");
+        join.setArgName("ids");
+        options.addOption(join);
+
+        Option joinMethod = new Option(null, "join-method", true, "match the samples of the other streams to each line by the " + JoinExport.NEAREST + " timestamp or the last value carried forward, " + JoinExport.LOCF + " (default " + JoinExport.NEAREST + ")");
+        joinMethod.setArgName("method");
+        options.addOption(joinMethod);
+
+        Option tolerance = new Option(null, "tolerance", true, "leave the cells of a joined stream empty when its matching sample is further away than this (default: no limit)");
+        tolerance.setArgName("ms");
+        options.addOption(tolerance);
+
+        Option index = new Option(null, "index", false, "create a temporary (datasource_id, datetime) index in the database file when the time range is selective; the file must be writable");
+        options.addOption(index);
+
+        Option incremental = new Option(null, "incremental", true, "export only the rows added since the run recorded in this checkpoint file and append them to the existing output");
+        incremental.setArgName("file");
+        options.addOption(incremental);
+
+        Option publish = new Option("p", "publish", true, "configure publishing to webservice");
+        publish.setArgName("URL");
+        options.addOption(publish);
+
+        Option journal = new Option(null, "journal", true, "record published chunks in this file and skip the chunks it acknowledges");
+        journal.setArgName("file");
+        options.addOption(journal);
+
+        Option chunkSize = new Option(null, "chunk-size", true, "number of data samples per published chunk");
+        chunkSize.setArgName("N");
+        options.addOption(chunkSize);
+
+        Option uploadThreads = new Option(null, "upload-threads", true, "number of chunks to publish concurrently");
+        uploadThreads.setArgName("N");
+        options.addOption(uploadThreads);
+
+        Option retries = new Option(null, "retries", true, "number of times a chunk is sent before publishing fails (default " + ChunkUploader.DEFAULT_MAX_ATTEMPTS + ")");
+        retries.setArgName("N");
+        options.addOption(retries);
+
+        Option connectTimeout = new Option(null, "connect-timeout", true, "publish connection timeout (default " + ChunkUploader.DEFAULT_CONNECT_TIMEOUT + ")");
+        connectTimeout.setArgName("ms");
+        options.addOption(connectTimeout);
+
+        Option readTimeout = new Option(null, "read-timeout", true, "publish read timeout (default " + ChunkUploader.DEFAULT_READ_TIMEOUT + ")");
+        readTimeout.setArgName("ms");
+        options.addOption(readTimeout);
+
+        Option mmapSize = new Option(null, "mmap-size", true, "database bytes read through memory mapped I/O per connection, 0 to disable (default " + ConnectionPool.DEFAULT_MMAP_SIZE / (1024 * 1024) + ")");
+        mmapSize.setArgName("MiB");
+        options.addOption(mmapSize);
+
+        Option cacheSize = new Option(null, "cache-size", true, "database page cache per connection (default " + ConnectionPool.DEFAULT_CACHE_SIZE / 1024 + ")");
+        cacheSize.setArgName("MiB");
+        options.addOption(cacheSize);
+
+        Option exclusive = new Option(null, "exclusive", false, "hold the database read locks for the whole run; nothing can write to the database meanwhile");
+        options.addOption(exclusive);
+
+        Option progress = new Option(null, "progress", true, "print the progress every this many seconds, 0 to disable (default " + DEFAULT_PROGRESS_INTERVAL + ")");
+        progress.setArgName("seconds");
+        options.addOption(progress);
+
+        Option report = new Option(null, "report", true, "write the rows, throughput and time per stage of the export to this JSON file");
+        report.setArgName("file");
+        options.addOption(report);
 
         Option help = new Option("h", "help", false, "print this message" );
         options.addOption(help);
@@ -70,31 +187,187 @@ public class Main {
                 // automatically generate the help statement
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp( "java -jar dataexporter.jar", options, true);
+            } else if (line.hasOption("batch")) {
+                for (String unsupported : new String[]{"publish", "journal", "incremental", "join"}) {
+                    if (line.hasOption(unsupported)) {
+                        throw new IllegalArgumentException("--" + unsupported + " is not supported with --batch");
+                    }
+                }
+                long resampleWindow = getResampleWindow(line);
+                int threadCount = Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+                BatchExport be = new BatchExport(line.getOptionValue("batch"), line.getOptionValue("output", "."), threadCount);
+                be.setTimeRange(TimeRange.parse(line.getOptionValue("from"), line.getOptionValue("to")));
+                be.setGzip(line.hasOption("gzip"));
+                be.setPrettyPrint(line.hasOption("pretty"));
+                be.setResampleWindow(resampleWindow);
+                be.setSingleScan(line.hasOption("single-scan"));
+                be.setIndex(line.hasOption("index"));
+                if (line.hasOption("mmap-size")) {
+                    be.setMmapSize(Long.parseLong(line.getOptionValue("mmap-size")) * 1024 * 1024);
+                }
+                if (line.hasOption("cache-size")) {
+                    be.setCacheSize(Integer.parseInt(line.getOptionValue("cache-size")) * 1024);
+                }
+                be.setExclusive(line.hasOption("exclusive"));
+                ExportMetrics metrics = new ExportMetrics();
+                be.setMetrics(metrics);
+                metrics.startProgress(Integer.parseInt(line.getOptionValue("progress", Integer.toString(DEFAULT_PROGRESS_INTERVAL))));
+                be.export(line.hasOption("csv"), line.hasOption("json"));
+                finish(metrics, line.getOptionValue("report"));
             } else {
+                String database = line.getOptionValue("database");
+                long resampleWindow = getResampleWindow(line);
+                boolean csv = line.hasOption("csv");
+                boolean json = line.hasOption("json");
+                int threadCount = Integer.parseInt(line.getOptionValue("threads", "1"));
+                int uploadThreadCount = Integer.parseInt(line.getOptionValue("upload-threads", "1"));
+                TimeRange timeRange = TimeRange.parse(line.getOptionValue("from"), line.getOptionValue("to"));
+
+                String publishURL = line.getOptionValue("publish");
+
+                Checkpoint checkpoint = line.hasOption("incremental") ? new Checkpoint(line.getOptionValue("incremental")) : null;
+                UploadJournal uploadJournal = line.hasOption("journal") ? new UploadJournal(line.getOptionValue("journal")) : null;
+
+                File outputDirectory = line.hasOption("output") ? new File(line.getOptionValue("output")) : null;
+                if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+                    throw new IOException(outputDirectory.getPath());
+                }
 
-                DataExport de = new DataExport(line.getOptionValue("database"));
-
-                List<Integer> ids = de.getIDs();
-                for (Integer id : ids) {
-                    System.out.println("Exporting data stream: " + id);
-//                    if (line.hasOption("publish")) {
-//                        if (de.publishGzipJSONData(line.getOptionValue("publish"), id)) {
-//                            System.out.println("Success");
-//                        } else {
-//                            System.out.println("Failure");
-//                        }
-//                    }
-                    if (line.hasOption("csv")) {
-                        de.writeCSVDataFile(id);
+                TimeRangeIndex timeRangeIndex = new TimeRangeIndex(database);
+                if (line.hasOption("index")) {
+                    if (!timeRangeIndex.isWritable()) {
+                        throw new IllegalArgumentException("--index needs write access to " + database + " and its directory");
                     }
-                    if (line.hasOption("json")) {
-                        de.writeJSONDataFile(id);
+                    timeRangeIndex.createIfSelective(timeRange);
+                }
+
+                ConnectionPool pool = new ConnectionPool(database, Math.max(threadCount, uploadThreadCount + 1));
+                if (line.hasOption("mmap-size")) {
+                    pool.setMmapSize(Long.parseLong(line.getOptionValue("mmap-size")) * 1024 * 1024);
+                }
+                if (line.hasOption("cache-size")) {
+                    pool.setCacheSize(Integer.parseInt(line.getOptionValue("cache-size")) * 1024);
+                }
+                pool.setExclusive(line.hasOption("exclusive"));
+
+                DataExport catalogExport = new DataExport(pool);
+                MetadataCatalog catalog = catalogExport.getCatalog();
+                catalogExport.close();
+
+                ExportMetrics metrics = new ExportMetrics();
+                int progressInterval = Integer.parseInt(line.getOptionValue("progress", Integer.toString(DEFAULT_PROGRESS_INTERVAL)));
+                // counting the rows of every stream takes a scan of the data table, so it is only done for the ETA
+                if (progressInterval > 0 && timeRange.isAll() && checkpoint == null && uploadJournal == null) {
+                    long rows = 0;
+                    for (Integer size : catalog.getStreamSizes().values()) {
+                        rows += size;
+                    }
+                    metrics.addExpectedRows(rows * ((csv ? 1 : 0) + (json ? 1 : 0) + (publishURL != null ? 1 : 0)));
+                }
+                metrics.startProgress(progressInterval);
+
+                if (line.hasOption("join")) {
+                    List<Integer> joinIds = new ArrayList<Integer>();
+                    for (String id : line.getOptionValue("join").split(",")) {
+                        joinIds.add(Integer.parseInt(id.trim()));
+                    }
+                    JoinExport je = new JoinExport(pool, joinIds);
+                    je.setCatalog(catalog);
+                    je.setMetrics(metrics);
+                    je.setMethod(line.getOptionValue("join-method", JoinExport.NEAREST));
+                    if (line.hasOption("tolerance")) {
+                        je.setTolerance(Long.parseLong(line.getOptionValue("tolerance")));
+                    }
+                    je.setTimeRange(timeRange);
+                    je.setGzip(line.hasOption("gzip"));
+                    je.setOutputDirectory(outputDirectory);
+                    je.writeCSVDataFile();
+                }
+
+                if (csv && line.hasOption("single-scan")) {
+                    SingleScanExport sse = new SingleScanExport(pool);
+                    sse.setCatalog(catalog);
+                    sse.setMetrics(metrics);
+                    sse.setTimeRange(timeRange);
+                    sse.setCheckpoint(checkpoint);
+                    sse.setGzip(line.hasOption("gzip"));
+                    sse.setOutputDirectory(outputDirectory);
+                    sse.writeCSVDataFiles();
+                    csv = false;
+                }
+
+                if (threadCount > 1) {
+                    ParallelExport pe = new ParallelExport(pool, threadCount);
+                    pe.setCatalog(catalog);
+                    pe.setMetrics(metrics);
+                    pe.setTimeRange(timeRange);
+                    pe.setCheckpoint(checkpoint);
+                    pe.setGzip(line.hasOption("gzip"));
+                    pe.setPrettyPrint(line.hasOption("pretty"));
+                    pe.setResampleWindow(resampleWindow);
+                    pe.setOutputDirectory(outputDirectory);
+                    pe.export(csv, json);
+                    csv = false;
+                    json = false;
+                }
+
+                if (csv || json || publishURL != null) {
+                    DataExport de = new DataExport(pool);
+                    de.setCatalog(catalog);
+                    de.setMetrics(metrics);
+                    de.setTimeRange(timeRange);
+                    de.setCheckpoint(checkpoint);
+                    de.setGzip(line.hasOption("gzip"));
+                    de.setPrettyPrint(line.hasOption("pretty"));
+                    de.setResampleWindow(resampleWindow);
+                    de.setOutputDirectory(outputDirectory);
+                    de.setUploadJournal(uploadJournal);
+                    ChunkUploader uploader = null;
+                    if (publishURL != null) {
+                        uploader = new ChunkUploader(pool, uploadThreadCount);
+                        uploader.setMetrics(metrics);
+                        uploader.setMaxAttempts(Integer.parseInt(line.getOptionValue("retries", Integer.toString(ChunkUploader.DEFAULT_MAX_ATTEMPTS))));
+                        uploader.setTimeouts(Integer.parseInt(line.getOptionValue("connect-timeout", Integer.toString(ChunkUploader.DEFAULT_CONNECT_TIMEOUT))),
+                                Integer.parseInt(line.getOptionValue("read-timeout", Integer.toString(ChunkUploader.DEFAULT_READ_TIMEOUT))));
+                        de.setUploader(uploader);
+                    }
+                    if (line.hasOption("chunk-size")) {
+                        de.setPublishBufferSize(Integer.parseInt(line.getOptionValue("chunk-size")));
                     }
+
+                    List<Integer> ids = de.getIDs();
+                    for (Integer id : ids) {
+                        System.out.println("Exporting data stream: " + id);
+                        if (publishURL != null) {
+                            if (de.publishGzipJSONData(publishURL, id)) {
+                                System.out.println("Success");
+                            } else {
+                                System.out.println("Failure");
+                            }
+                        }
+                        if (csv) {
+                            de.writeCSVDataFile(id);
+                        }
+                        if (json) {
+                            de.writeJSONDataFile(id);
+                        }
+                    }
+                    de.close();
+                    if (uploader != null) {
+                        uploader.close();
+                    }
+                }
+
+                pool.close();
+                if (uploadJournal != null) {
+                    uploadJournal.close();
                 }
+                timeRangeIndex.close();
+                finish(metrics, line.getOptionValue("report"));
             }
 
         }
-        catch( ParseException exp ) {
+        catch( ParseException | IllegalArgumentException exp ) {
             // oops, something went wrong
             System.err.println( "Parsing failed.  Reason: " + exp.getMessage() );
             // automatically generate the help statement
@@ -102,6 +375,43 @@ public class Main {
             formatter.printHelp( "java -jar dataexporter.jar", options, true);
 
         }
+        catch (IOException e) {
+            System.err.println("Unable to open file: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Parse the --resample window.  Windows are aggregated in memory as the rows are read, so the exports that write
+     * the rows of a stream in several passes or interleaved with other streams cannot be resampled.
+     *
+     * @param line parsed command line
+     * @return width of the windows in milliseconds, 0 without --resample
+     */
+    private static long getResampleWindow(CommandLine line) {
+        if (!line.hasOption("resample")) {
+            return 0;
+        }
+        for (String unsupported : new String[]{"single-scan", "incremental", "publish", "journal", "join"}) {
+            if (line.hasOption(unsupported)) {
+                throw new IllegalArgumentException("--" + unsupported + " is not supported with --resample");
+            }
+        }
+        return WindowAggregator.parseWindow(line.getOptionValue("resample"));
+    }
 
+    /**
+     * Stop the progress output, print the totals and write the report
+     *
+     * @param metrics  ExportMetrics of the export
+     * @param filename report file, or null
+     * @throws IOException
+     */
+    private static void finish(ExportMetrics metrics, String filename) throws IOException {
+        metrics.stopProgress();
+        System.out.println(metrics.getProgress());
+        if (filename != null) {
+            metrics.writeReport(filename);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,493 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports every DataKit database of a study.  Databases and their data streams are scheduled together on one
+ * work-stealing pool: each database task loads the metadata of its database and forks a task per data stream, largest
+ * first, so threads that run out of work take streams of other databases instead of waiting for the slowest file.
+ * The output of each database is written to its own directory under the output root, named after the path of the
+ * database relative to the study directory, and a summary of the rows, bytes written before compression, time and
+ * failures of every database is written to summary.csv in the output root.
+ */
+public class BatchExport {
+
+    public static final String SUMMARY_FILENAME = "summary.csv";
+
+    private static final String DATABASE_EXTENSION = ".db";
+    private static final String WILDCARDS = "*?[{";
+
+    private final String input;
+    private final File outputRoot;
+    private final int threads;
+    private TimeRange timeRange = TimeRange.ALL;
+    private boolean gzip = false;
+    private boolean prettyPrint = false;
+    private long resampleWindow = 0;
+    private boolean singleScan = false;
+    private boolean index = false;
+    private long mmapSize = ConnectionPool.DEFAULT_MMAP_SIZE;
+    private int cacheSize = ConnectionPool.DEFAULT_CACHE_SIZE;
+    private boolean exclusive = false;
+    private ExportMetrics metrics = new ExportMetrics();
+
+    /**
+     * Build a BatchExport object for a study
+     *
+     * @param input      directory searched recursively for .db files, or a glob pattern of database files
+     * @param outputRoot directory of the output trees and the summary
+     * @param threads    number of threads shared by all databases
+     */
+    public BatchExport(String input, String outputRoot, int threads) {
+        this.input = input;
+        this.outputRoot = new File(outputRoot);
+        this.threads = threads;
+    }
+
+    /**
+     * Restrict the exported data samples to a time range
+     *
+     * @param timeRange time range of the samples
+     */
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Compress the CSV and JSON output files with parallel gzip, adding .gz to their names
+     *
+     * @param gzip enable compressed output files
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Indent the JSON output files, see DataExport.setPrettyPrint
+     *
+     * @param prettyPrint enable indented JSON
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Downsample the output files into fixed time windows, see DataExport.setResampleWindow
+     *
+     * @param resampleWindow width of the windows in milliseconds, 0 to write every sample
+     */
+    public void setResampleWindow(long resampleWindow) {
+        this.resampleWindow = resampleWindow;
+    }
+
+    /**
+     * Write the CSV files of each database with a single pass over its data table, see SingleScanExport
+     *
+     * @param singleScan enable single scan CSV export
+     */
+    public void setSingleScan(boolean singleScan) {
+        this.singleScan = singleScan;
+    }
+
+    /**
+     * Create a temporary time range index in each database when the time range is selective, see TimeRangeIndex
+     *
+     * @param index enable the temporary index
+     */
+    public void setIndex(boolean index) {
+        this.index = index;
+    }
+
+    /**
+     * @param mmapSize bytes of each database read through memory mapped I/O, see ConnectionPool.setMmapSize
+     */
+    public void setMmapSize(long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    /**
+     * @param cacheSize page cache per connection in KiB, see ConnectionPool.setCacheSize
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @param exclusive hold the read locks of each database until its export is done, see ConnectionPool.setExclusive
+     */
+    public void setExclusive(boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    /**
+     * Add the rows, bytes and stage timings of every database to shared metrics.  The rows of each database are added
+     * to the expected rows as its metadata is loaded, unless the export is restricted to a time range.
+     *
+     * @param metrics ExportMetrics of the study
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Export all databases of the study and write the summary
+     *
+     * @param csv  enable CSV file output
+     * @param json enable JSON file output
+     * @return true if every data stream of every database was exported
+     * @throws IOException if the databases cannot be listed or the summary cannot be written
+     */
+    public boolean export(boolean csv, boolean json) throws IOException {
+        long start = System.currentTimeMillis();
+        File root = getRoot();
+        List<File> databases = findDatabases(root);
+        System.out.println("Found " + databases.size() + " databases in " + input);
+
+        final List<DatabaseTask> tasks = new ArrayList<DatabaseTask>();
+        for (File database : databases) {
+            String name = root.toPath().relativize(database.toPath()).toString();
+            if (name.endsWith(DATABASE_EXTENSION)) {
+                name = name.substring(0, name.length() - DATABASE_EXTENSION.length());
+            }
+            tasks.add(new DatabaseTask(database, new File(outputRoot, name), csv, json, tasks.size() + 1, databases.size()));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        return writeSummary(tasks, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return directory the output directories are named relative to: the input directory, or the part of the glob
+     * pattern before its first wildcard up to the last separator
+     */
+    private File getRoot() {
+        if (new File(input).isDirectory()) {
+            return new File(input);
+        }
+        int length = getRootLength();
+        return new File(length == 0 ? "." : input.substring(0, length));
+    }
+
+    private int getRootLength() {
+        int wildcard = input.length();
+        for (char c : WILDCARDS.toCharArray()) {
+            int i = input.indexOf(c);
+            if (i >= 0) {
+                wildcard = Math.min(wildcard, i);
+            }
+        }
+        return Math.max(input.lastIndexOf('/', wildcard), input.lastIndexOf(File.separatorChar, wildcard)) + 1;
+    }
+
+    /**
+     * List the databases of the study, sorted by path
+     *
+     * @param root directory to search
+     * @return database files
+     * @throws IOException
+     */
+    private List<File> findDatabases(final File root) throws IOException {
+        final List<File> result = new ArrayList<File>();
+        final PathMatcher matcher;
+        if (new File(input).isDirectory()) {
+            matcher = null;
+        } else {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(getRootLength()));
+        }
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException(root.getPath());
+        }
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && (matcher == null
+                        ? file.getFileName().toString().endsWith(DATABASE_EXTENSION)
+                        : matcher.matches(root.toPath().relativize(file)))) {
+                    result.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Unable to read " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(result);
+        return result;
+    }
+
+    private ConnectionPool createPool(String filename) {
+        ConnectionPool pool = new ConnectionPool(filename, threads);
+        pool.setMmapSize(mmapSize);
+        pool.setCacheSize(cacheSize);
+        pool.setExclusive(exclusive);
+        return pool;
+    }
+
+    /**
+     * Write summary.csv and print the totals of the study
+     *
+     * @param tasks        completed database tasks
+     * @param milliseconds wall time of the study
+     * @return true if no database had failures
+     * @throws IOException
+     */
+    private boolean writeSummary(List<DatabaseTask> tasks, long milliseconds) throws IOException {
+        long rows = 0;
+        long bytes = 0;
+        int failures = 0;
+        outputRoot.mkdirs();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputRoot, SUMMARY_FILENAME)), "utf-8"));
+        try {
+            writer.write("database,output,streams,rows,bytes,milliseconds,failures\n");
+            for (DatabaseTask task : tasks) {
+                writer.write(quote(task.database.getPath()) + "," + quote(task.outputDirectory.getPath()) + "," + task.streams + ","
+                        + task.rows.get() + "," + task.bytes + "," + task.milliseconds + "," + task.failures.get() + "\n");
+                rows += task.rows.get();
+                bytes += task.bytes;
+                failures += task.failures.get();
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println("Study: " + tasks.size() + " databases, " + rows + " rows, " + bytes + " bytes, "
+                + milliseconds + " ms, " + failures + " failures");
+        return failures == 0;
+    }
+
+    private static String quote(String value) {
+        if (value.contains(",") || value.contains("\"")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    /**
+     * Exports one database by forking a task per data stream, or a single scan task for its CSV files
+     */
+    private class DatabaseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File database;
+        private final File outputDirectory;
+        private final boolean csv;
+        private final boolean json;
+        private final int number;
+        private final int count;
+
+        private int streams = 0;
+        private final AtomicLong rows = new AtomicLong();
+        private long bytes = 0;
+        private long milliseconds = 0;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final ExportMetrics databaseMetrics;
+
+        DatabaseTask(File database, File outputDirectory, boolean csv, boolean json, int number, int count) {
+            this.databaseMetrics = metrics.forDatabase(database.getPath());
+            this.database = database;
+            this.outputDirectory = outputDirectory;
+            this.csv = csv;
+            this.json = json;
+            this.number = number;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.currentTimeMillis();
+            System.out.println("Exporting database " + number + "/" + count + ": " + database);
+            TimeRangeIndex timeRangeIndex = new TimeRangeIndex(database.getPath());
+            if (index) {
+                timeRangeIndex.createIfSelective(timeRange);
+            }
+            ConnectionPool pool = createPool(database.getPath());
+            try {
+                if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+                    throw new IOException("Unable to create " + outputDirectory);
+                }
+                DataExport de = new DataExport(pool);
+                final MetadataCatalog catalog = de.getCatalog();
+                List<Integer> ids = new ArrayList<Integer>(catalog.getIDs());
+                // counting the rows takes a scan of the data table, so streams are only ordered by size without a time range
+                final Map<Integer, Integer> sizes = timeRange.isAll() ? catalog.getStreamSizes() : Collections.<Integer, Integer>emptyMap();
+                de.close();
+                if (ids.isEmpty()) {
+                    throw new IOException("No datasources in " + database);
+                }
+                streams = ids.size();
+                if (timeRange.isAll()) {
+                    long total = 0;
+                    for (Integer id : ids) {
+                        total += size(sizes, id);
+                    }
+                    metrics.addExpectedRows(total * ((csv ? 1 : 0) + (json ? 1 : 0)));
+                }
+
+                Collections.sort(ids, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return Integer.compare(size(sizes, b), size(sizes, a));
+                    }
+                });
+
+                List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+                if (csv && singleScan) {
+                    tasks.add(new SingleScanTask(this, pool));
+                }
+                if ((csv && !singleScan) || json) {
+                    for (Integer id : ids) {
+                        tasks.add(new StreamTask(this, pool, catalog, id, csv && !singleScan, json));
+                    }
+                }
+                invokeAll(tasks);
+            } catch (Exception e) {
+                System.err.println("Database " + database + ": " + e);
+                failures.incrementAndGet();
+            } finally {
+                pool.close();
+                timeRangeIndex.close();
+            }
+            // only the files written by this export, not what was already in the output directory
+            bytes = databaseMetrics.getDatabaseBytes();
+            milliseconds = System.currentTimeMillis() - start;
+            System.out.println("Finished database " + number + "/" + count + ": " + database + " (" + rows.get()
+                    + " rows, " + milliseconds + " ms, " + failures.get() + " failures)");
+        }
+
+        private int size(Map<Integer, Integer> sizes, Integer id) {
+            Integer size = sizes.get(id);
+            return size == null ? 0 : size;
+        }
+    }
+
+    /**
+     * Exports one data stream of a database.  Rows are counted from the CSV file, or from the JSON file when only JSON
+     * is written.
+     */
+    private class StreamTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DatabaseTask database;
+        private final ConnectionPool pool;
+        private final MetadataCatalog catalog;
+        private final Integer id;
+        private final boolean csv;
+        private final boolean json;
+
+        StreamTask(DatabaseTask database, ConnectionPool pool, MetadataCatalog catalog, Integer id, boolean csv, boolean json) {
+            this.database = database;
+            this.pool = pool;
+            this.catalog = catalog;
+            this.id = id;
+            this.csv = csv;
+            this.json = json;
+        }
+
+        @Override
+        protected void compute() {
+            DataExport de = new DataExport(pool);
+            de.setCatalog(catalog);
+            de.setTimeRange(timeRange);
+            de.setGzip(gzip);
+            de.setPrettyPrint(prettyPrint);
+            de.setResampleWindow(resampleWindow);
+            de.setOutputDirectory(database.outputDirectory);
+            de.setMetrics(database.databaseMetrics);
+            try {
+                boolean success = true;
+                if (csv) {
+                    success = de.writeCSVDataFile(id);
+                }
+                long csvRows = de.getRowCount();
+                if (json) {
+                    success &= de.writeJSONDataFile(id);
+                }
+                database.rows.addAndGet(database.csv ? csvRows : de.getRowCount());
+                if (!success) {
+                    database.failures.incrementAndGet();
+                }
+            } finally {
+                de.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the CSV files of a database with one scan of its data table
+     */
+    private class SingleScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DatabaseTask database;
+        private final ConnectionPool pool;
+
+        SingleScanTask(DatabaseTask database, ConnectionPool pool) {
+            this.database = database;
+            this.pool = pool;
+        }
+
+        @Override
+        protected void compute() {
+            SingleScanExport sse = new SingleScanExport(pool);
+            sse.setTimeRange(timeRange);
+            sse.setGzip(gzip);
+            sse.setOutputDirectory(database.outputDirectory);
+            sse.setMetrics(database.databaseMetrics);
+            if (!sse.writeCSVDataFiles()) {
+                database.failures.incrementAndGet();
+            }
+            database.rows.addAndGet(sse.getRowCount());
+        }
+    }
+}
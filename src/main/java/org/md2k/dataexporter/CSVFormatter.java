@@ -0,0 +1,72 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.datakitapi.datatype.DataType;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming CSV formatter for a data stream.  Each line is built in a reusable buffer straight from the primitive
+ * sample values and written to the output without creating intermediate Strings or boxing array elements.  The
+ * DataTypeHandler is resolved from the first sample, since a stream holds a single DataType class.  The output is
+ * identical to DataTypeConverter.dataTypeToString followed by a newline.
+ */
+public class CSVFormatter {
+
+    private final StringBuilder line = new StringBuilder(256);
+    private char[] buffer = new char[256];
+
+    private Class<? extends DataType> type = null;
+    private DataTypeHandler handler = null;
+
+    /**
+     * Write a DataType object as a single CSV line
+     *
+     * @param dt     DataType object to format
+     * @param writer destination of the line
+     * @throws IOException
+     */
+    public void write(DataType dt, Writer writer) throws IOException {
+        if (dt.getClass() != type) {
+            type = dt.getClass();
+            handler = DataTypeHandler.forType(type);
+        }
+        line.setLength(0);
+        handler.appendCSV(dt, line);
+        line.append('\n');
+
+        int length = line.length();
+        if (length > buffer.length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+        line.getChars(0, length, buffer, 0);
+        writer.write(buffer, 0, length);
+    }
+}
@@ -0,0 +1,159 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Checkpoint file of the highest _id exported for each data stream and output format.  An incremental export only
+ * queries rows above the watermark of a stream and appends them to the existing output.  The file is rewritten after
+ * every completed stream so an interrupted run resumes from the last finished stream.  The length of the output file
+ * is recorded with each watermark; before appending, the output is cut back to it, which drops the rows that an
+ * interrupted run appended after the last update.
+ */
+public class Checkpoint {
+
+    public static final String CSV = "csv";
+    public static final String JSON = "json";
+
+    private static final String LENGTH_SUFFIX = ".length";
+
+    private final File file;
+    private final Properties watermarks = new Properties();
+
+    /**
+     * Build a Checkpoint object backed by a properties file, loading its watermarks if the file exists
+     *
+     * @param filename checkpoint file
+     * @throws IOException
+     */
+    public Checkpoint(String filename) throws IOException {
+        this.file = new File(filename);
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                watermarks.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Retrieve the highest _id already exported
+     *
+     * @param format output format
+     * @param id     Datastream id
+     * @return highest exported _id, or 0 if the data stream has not been exported in this format
+     */
+    public synchronized long getWatermark(String format, Integer id) {
+        String value = watermarks.getProperty(key(format, id));
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * @param format output format
+     * @param id     Datastream id
+     * @return true if the data stream has been exported in this format before
+     */
+    public synchronized boolean contains(String format, Integer id) {
+        return watermarks.containsKey(key(format, id));
+    }
+
+    /**
+     * Retrieve the length of the output file when the watermark was recorded
+     *
+     * @param format output format
+     * @param id     Datastream id
+     * @return length in bytes, or -1 if none was recorded
+     */
+    public synchronized long getLength(String format, Integer id) {
+        String value = watermarks.getProperty(key(format, id) + LENGTH_SUFFIX);
+        return value == null ? -1 : Long.parseLong(value);
+    }
+
+    /**
+     * Record the highest _id exported for a data stream with the length of its output file and write the
+     * checkpoint file
+     *
+     * @param format    output format
+     * @param id        Datastream id
+     * @param watermark highest exported _id
+     * @param output    output file holding the rows up to the watermark
+     */
+    public synchronized void update(String format, Integer id, long watermark, File output) {
+        watermarks.setProperty(key(format, id), Long.toString(watermark));
+        watermarks.setProperty(key(format, id) + LENGTH_SUFFIX, Long.toString(output.length()));
+        save();
+    }
+
+    /**
+     * Cut an output file back to the length recorded with the watermark of its data stream, before rows above the
+     * watermark are appended to it
+     *
+     * @param format output format
+     * @param id     Datastream id
+     * @param output output file of the data stream
+     * @throws IOException
+     */
+    public void truncate(String format, Integer id, File output) throws IOException {
+        long length = getLength(format, id);
+        if (length < 0 || output.length() <= length) {
+            return;
+        }
+        System.out.println("Truncating " + output + " from " + output.length() + " to " + length + " bytes, the length recorded in the checkpoint");
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                watermarks.store(out, "DataExporter watermarks: <format>.<datastream id>=<highest exported _id>, <format>.<datastream id>.length=<output file bytes>");
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static String key(String format, Integer id) {
+        return format + "." + id;
+    }
+}
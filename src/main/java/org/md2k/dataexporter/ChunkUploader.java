@@ -0,0 +1,356 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads publish chunks to the Cerebral Cortex webservice over one pooled, keep-alive HTTP client.  Chunks are
+ * streamed by a fixed number of upload threads, each reading from a read-only database connection borrowed from a
+ * pool for the duration of the chunk, so the next chunks are read, converted and compressed while earlier ones are
+ * still being sent.
+ */
+public class ChunkUploader {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 300000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+    private static final long CIRCUIT_OPEN_TIME = 30000;
+
+    private final ConnectionPool pool;
+    private final boolean ownsPool;
+    private final int concurrency;
+    private final CloseableHttpClient client;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+    private final Map<String, CircuitBreaker> circuitBreakers = new HashMap<String, CircuitBreaker>();
+
+    private RequestConfig requestConfig;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private ExportMetrics metrics = null;
+
+    /**
+     * Build a ChunkUploader object for a sqlite database file
+     *
+     * @param filename    SQLite database file
+     * @param concurrency number of chunks to upload at the same time
+     */
+    public ChunkUploader(String filename, int concurrency) {
+        this(new ConnectionPool(filename, concurrency), true, concurrency);
+    }
+
+    /**
+     * Build a ChunkUploader object that reads the chunks through a shared connection pool.  The pool should have a
+     * connection for every upload thread in addition to those held by other users.
+     *
+     * @param pool        ConnectionPool of the database
+     * @param concurrency number of chunks to upload at the same time
+     */
+    public ChunkUploader(ConnectionPool pool, int concurrency) {
+        this(pool, false, concurrency);
+    }
+
+    private ChunkUploader(ConnectionPool pool, boolean ownsPool, int concurrency) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.concurrency = concurrency;
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(concurrency);
+        connectionManager.setDefaultMaxPerRoute(concurrency);
+        client = HttpClients.custom().setConnectionManager(connectionManager).build();
+        executor = Executors.newFixedThreadPool(concurrency);
+        setTimeouts(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Set the timeouts of the upload requests.  The read timeout should be well above the time the webservice needs to
+     * ingest a chunk: a chunk that timed out after it was sent is not sent again, since the webservice may have
+     * accepted it, and the publish of its data stream stops.
+     *
+     * @param connectTimeout time in milliseconds to establish a connection
+     * @param readTimeout    time in milliseconds to wait for data from the webservice
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+    }
+
+    /**
+     * Set the number of times a chunk is sent before its upload fails
+     *
+     * @param maxAttempts attempts per chunk
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Add the published rows and the time spent reading, compressing and sending the chunks to export metrics
+     *
+     * @param metrics ExportMetrics of the export
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Queue the upload of the first rows of a data stream after an _id.  The last _id of the chunk is known once its
+     * rows have been read by the first attempt; if they never are, chunkEnd is completed with afterId.
+     *
+     * @param request       URL
+     * @param id            Datastream id
+     * @param timeRange     time range of the published samples
+     * @param afterId       _id preceding the chunk
+     * @param limit         number of rows in the chunk
+     * @param catalog       MetadataCatalog with the serialized header of the data stream
+     * @param prettyPrint   indent the JSON of the chunk
+     * @param uploadJournal journal to record the upload in, or null
+     * @param chunkEnd      completed with the last _id of the chunk
+     * @return Future of the response of the webservice
+     */
+    public Future<UploadResponse> upload(final String request, final Integer id, final TimeRange timeRange, final long afterId, final int limit,
+                                         final MetadataCatalog catalog, final boolean prettyPrint, final UploadJournal uploadJournal,
+                                         final CompletableFuture<Long> chunkEnd) {
+        return executor.submit(new Callable<UploadResponse>() {
+            @Override
+            public UploadResponse call() throws SQLException {
+                try {
+                    return send(request, id, timeRange, afterId, limit, catalog, prettyPrint, uploadJournal, chunkEnd);
+                } finally {
+                    chunkEnd.complete(afterId);
+                }
+            }
+        });
+    }
+
+    private UploadResponse send(String request, Integer id, TimeRange timeRange, long afterId, int limit, MetadataCatalog catalog,
+                                boolean prettyPrint, UploadJournal uploadJournal, CompletableFuture<Long> chunkEnd) throws SQLException {
+        PooledConnection connection = pool.acquire();
+        GzipJSONChunkBody body = new GzipJSONChunkBody(connection, id, timeRange, afterId, limit, catalog, prettyPrint, metrics, chunkEnd);
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
+        builder.addPart("file", body);
+        builder.addPart("hash", body.hashBody());
+
+        UploadResponse response;
+        long start = System.nanoTime();
+        try {
+            response = post(request, builder.build(), null);
+        } finally {
+            connection.release();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.add(ExportMetrics.Stage.UPLOAD, elapsed - body.getNanos());
+            metrics.addRows(body.getRowCount());
+            metrics.addBytes(body.getBytes());
+            metrics.addStream(id, "publish", body.getRowCount(), body.getBytes(), elapsed);
+        }
+        response.hash = body.getHash();
+        if (uploadJournal != null) {
+            uploadJournal.record(id, afterId, body.getLastId(), response.hash, response.status, response.message);
+        }
+        return response;
+    }
+
+    /**
+     * Send an entity to the webservice on the calling thread.  Requests that did not reach the webservice or were
+     * answered with 408, 429 or a 5xx status are retried with exponential backoff and jitter, honoring a Retry-After
+     * header, and pass through the circuit breaker of the endpoint, which only a 2xx response closes.  The entity is written again for every attempt.  A request
+     * that was sent in full but got no response, such as a read timeout, is not retried: the webservice may have
+     * accepted it, so its outcome is returned as unknown.
+     *
+     * @param request URL
+     * @param entity  request body
+     * @param hash    hash of the uploaded data
+     * @return UploadResponse of the last attempt, with status 0 if it failed without a response
+     */
+    public UploadResponse post(String request, HttpEntity entity, String hash) {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(request);
+        UploadResponse response = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                circuitBreaker.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            response = execute(request, entity, hash);
+            if (response.isAcknowledged()) {
+                circuitBreaker.onSuccess();
+                return response;
+            }
+            if (response.isOutcomeUnknown()) {
+                circuitBreaker.onFailure(0);
+                System.out.println("Attempt " + attempt + " was sent but got no response, not sending it again since the webservice may have accepted it");
+                return response;
+            }
+            if (!response.isRetryable()) {
+                circuitBreaker.onRejected();
+                System.err.println("Upload failed: " + response.message);
+                return response;
+            }
+            circuitBreaker.onFailure(response.retryAfter);
+            if (attempt < maxAttempts) {
+                long delay = backoff(attempt, response.retryAfter);
+                System.out.println("Attempt " + attempt + " failed with status " + response.status + ", retrying in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return response == null ? new UploadResponse(hash, 0, "Interrupted") : response;
+    }
+
+    private UploadResponse execute(String request, HttpEntity entity, String hash) {
+        final AtomicBoolean sent = new AtomicBoolean();
+        HttpPost post = new HttpPost(request);
+        post.setConfig(requestConfig);
+        post.setEntity(new HttpEntityWrapper(entity) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                sent.set(false);
+                super.writeTo(out);
+                sent.set(true);
+            }
+        });
+        try {
+            CloseableHttpResponse response = client.execute(post);
+            try {
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+                return new UploadResponse(hash, response.getStatusLine().getStatusCode(), response.getStatusLine() + " " + body,
+                        parseRetryAfter(response.getFirstHeader("Retry-After")));
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            UploadResponse response = new UploadResponse(hash, 0, (sent.get() ? "No response after the request was sent: " : "") + e);
+            response.sent = sent.get();
+            return response;
+        }
+    }
+
+    /**
+     * Delay before the next attempt: a random time up to an exponentially growing bound, but no less than the time
+     * the webservice asked for
+     *
+     * @param attempt    number of the failed attempt, starting at 1
+     * @param retryAfter time in milliseconds the webservice asked to wait, 0 if it did not
+     * @return delay in milliseconds
+     */
+    private long backoff(int attempt, long retryAfter) {
+        long bound = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempt - 1, 16));
+        long jitter;
+        synchronized (random) {
+            jitter = (long) (random.nextDouble() * bound);
+        }
+        return Math.max(jitter, retryAfter);
+    }
+
+    /**
+     * @param header Retry-After header in delay-seconds or HTTP-date form, or null
+     * @return delay in milliseconds, 0 if the header is missing or invalid
+     */
+    private static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    private synchronized CircuitBreaker getCircuitBreaker(String request) {
+        URI uri = URI.create(request);
+        String endpoint = uri.getScheme() + "://" + uri.getAuthority();
+        CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_TIME);
+            circuitBreakers.put(endpoint, circuitBreaker);
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Stop the upload threads and close the HTTP client, and the connection pool if this object created it
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Circuit breaker for one webservice endpoint.  After a number of consecutive failed requests the circuit opens and
+ * callers wait, instead of sending, until the open period has passed.  A single trial request is then let through;
+ * its success closes the circuit and its failure opens it again.  Waiting callers throttle the upload without
+ * dropping any chunk.
+ */
+public class CircuitBreaker {
+
+    private enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openUntil = 0;
+    private boolean trialInFlight = false;
+
+    /**
+     * Build a CircuitBreaker
+     *
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openMillis       minimum time the circuit stays open
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Wait until a request may be sent
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (state == State.OPEN) {
+                long wait = openUntil - System.currentTimeMillis();
+                if (wait > 0) {
+                    wait(wait);
+                    continue;
+                }
+                System.out.println("Circuit half-open, sending a trial request");
+                state = State.HALF_OPEN;
+            }
+            if (!trialInFlight) {
+                trialInFlight = true;
+                return;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Record a request acknowledged by the endpoint
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("Circuit closed");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Record a request answered with an error that says nothing about the health of the endpoint, such as a 4xx
+     * status.  The circuit is left as it is; if this was the trial request, another caller may send the next one.
+     */
+    public synchronized void onRejected() {
+        trialInFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Record a failed request
+     *
+     * @param retryAfter time in milliseconds the endpoint asked to wait, 0 if it did not
+     */
+    public synchronized void onFailure(long retryAfter) {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            long until = System.currentTimeMillis() + Math.max(openMillis, retryAfter);
+            if (state != State.OPEN) {
+                System.out.println("Circuit open after " + failures + " failures");
+            }
+            state = State.OPEN;
+            openUntil = Math.max(openUntil, until);
+        }
+        trialInFlight = false;
+        notifyAll();
+    }
+}
@@ -0,0 +1,197 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Small pool of read-only connections to a sqlite database file.  Connections are opened on demand, up to the size of
+ * the pool, with pragmas tuned for bulk reads: query_only, memory mapped I/O, a larger page cache, in-memory temporary
+ * storage and, optionally, exclusive locking.  Each connection is lent to one thread at a time together with its
+ * cache of prepared statements, so export workers, metadata lookups and range queries never share a statement.
+ */
+public class ConnectionPool {
+
+    public static final long DEFAULT_MMAP_SIZE = 256L * 1024 * 1024;
+    public static final int DEFAULT_CACHE_SIZE = 16 * 1024;
+
+    // sqlite-jdbc can crash when connections are opened concurrently, even to different databases
+    private static final Object OPEN_LOCK = new Object();
+
+    private final String filename;
+    private final int size;
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+    private final List<PooledConnection> connections = new ArrayList<PooledConnection>();
+
+    private long mmapSize = DEFAULT_MMAP_SIZE;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private boolean exclusive = false;
+
+    /**
+     * Build a ConnectionPool for a sqlite database file
+     *
+     * @param filename SQLite database file
+     * @param size     maximum number of open connections
+     */
+    public ConnectionPool(String filename, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Connection pool size must be positive: " + size);
+        }
+        this.filename = filename;
+        this.size = size;
+    }
+
+    /**
+     * Set the number of bytes of the database file each connection reads through memory mapped I/O, 0 to disable it
+     *
+     * @param mmapSize bytes to map
+     */
+    public void setMmapSize(long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    /**
+     * Set the page cache of each connection
+     *
+     * @param cacheSize cache size in KiB
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Keep the read lock of each connection until it is closed instead of taking it again for every query.  Nothing
+     * can write to the database while the pool is open, including the temporary index of TimeRangeIndex.
+     *
+     * @param exclusive use locking_mode=EXCLUSIVE
+     */
+    public void setExclusive(boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    /**
+     * Build a pool for the same database file, with the same pragmas and a different size
+     *
+     * @param size maximum number of open connections
+     * @return ConnectionPool with no open connections
+     */
+    public ConnectionPool withSize(int size) {
+        ConnectionPool pool = new ConnectionPool(filename, size);
+        pool.setMmapSize(mmapSize);
+        pool.setCacheSize(cacheSize);
+        pool.setExclusive(exclusive);
+        return pool;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Borrow a connection, opening a new one if none is idle and the pool is not full, or waiting for one to be
+     * released otherwise
+     *
+     * @return PooledConnection for the exclusive use of the caller until it is released
+     * @throws SQLException
+     */
+    public PooledConnection acquire() throws SQLException {
+        PooledConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (this) {
+            if (connections.size() < size) {
+                connection = new PooledConnection(this, open());
+                connections.add(connection);
+                return connection;
+            }
+        }
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    void release(PooledConnection connection) {
+        idle.offer(connection);
+    }
+
+    /**
+     * Open a read-only connection with the pragmas of this pool
+     *
+     * @return Connection to the database
+     * @throws SQLException
+     */
+    private Connection open() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        Connection connection;
+        synchronized (OPEN_LOCK) {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + filename, config.toProperties());
+        }
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA query_only = 1");
+            statement.execute("PRAGMA mmap_size = " + mmapSize);
+            statement.execute("PRAGMA cache_size = " + -cacheSize);
+            statement.execute("PRAGMA temp_store = MEMORY");
+            if (exclusive) {
+                statement.execute("PRAGMA locking_mode = EXCLUSIVE");
+            }
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    /**
+     * Close all connections of the pool.  Connections that are still borrowed must not be used afterwards.
+     */
+    public synchronized void close() {
+        for (PooledConnection connection : connections) {
+            connection.closeConnection();
+        }
+        connections.clear();
+        idle.clear();
+    }
+}
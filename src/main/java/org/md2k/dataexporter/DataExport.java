@@ -27,22 +27,14 @@ package org.md2k.dataexporter;
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonWriter;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.md2k.cerebralcortex.CerebralCortexDataPackage;
 import org.md2k.cerebralcortex.StudyInfo;
-import org.md2k.cerebralcortex.TSV;
 import org.md2k.cerebralcortex.UserInfo;
 import org.md2k.datakitapi.datatype.DataType;
 import org.md2k.datakitapi.source.datasource.DataSource;
@@ -53,7 +45,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.util.*;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -63,37 +60,241 @@ public class DataExport {
 
     private static final int PUBLISH_BUFFER_SIZE = 1000000;
     private static final int SHORT_BUFFER_SIZE = 10;
-    private static final int CSV_BUFFER_SIZE = 1000000;
-    private static final int JSON_FILE_BUFFER_SIZE = 10000;
 
-    private static final int QUERY_TIMEOUT = 60;
-
-    private Statement statement = null;
-
-    private Kryo kryo = new Kryo();
+    private final ConnectionPool pool;
+    private final boolean ownsPool;
+    private PooledConnection connection = null;
+    private MetadataCatalog catalog = null;
+
+    private TimeRange timeRange = TimeRange.ALL;
+    private Checkpoint checkpoint = null;
+    private UploadJournal uploadJournal = null;
+    private ChunkUploader uploader = null;
+    private boolean ownsUploader = false;
+    private boolean gzip = false;
+    private boolean prettyPrint = false;
+    private File outputDirectory = null;
+    private long rowCount = 0;
+    private ExportMetrics metrics = new ExportMetrics();
+    private int publishBufferSize = PUBLISH_BUFFER_SIZE;
+    private long resampleWindow = 0;
 
     /**
-     * Build a DataExport object that connects to a sqlite database file
+     * Build a DataExport object that opens its own read-only connection to a sqlite database file.  Its pool has room
+     * for a second connection, used by the uploader created when publishing without one.
      *
      * @param filename SQLite database file
      */
     public DataExport(String filename) {
+        this(new ConnectionPool(filename, 2), true);
+    }
+
+    /**
+     * Build a DataExport object that borrows a connection from a pool until it is closed
+     *
+     * @param pool ConnectionPool of the database
+     */
+    public DataExport(ConnectionPool pool) {
+        this(pool, false);
+    }
+
+    private DataExport(ConnectionPool pool, boolean ownsPool) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
         try {
-            Connection connection = DriverManager.getConnection("jdbc:sqlite:" + filename);
-            statement = connection.createStatement();
-            statement.setQueryTimeout(QUERY_TIMEOUT);
+            connection = pool.acquire();
         } catch (SQLException e) {
             System.err.println(e.getMessage());
         }
     }
 
+    /**
+     * Restrict the exported and published data samples to a time range
+     *
+     * @param timeRange time range of the samples
+     */
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Enable incremental export.  Only rows above the watermark of each data stream are exported and appended to
+     * the existing output; JSON output is written as newline delimited JSON so that it can be appended to.
+     *
+     * @param checkpoint checkpoint of the exported rows
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Downsample the CSV and JSON output files into fixed time windows.  Each window is written as one data point
+     * with the count, mean, minimum, maximum and standard deviation of the samples, see WindowAggregator.  Published
+     * data is not resampled.
+     *
+     * @param resampleWindow width of the windows in milliseconds, 0 to write every sample
+     */
+    public void setResampleWindow(long resampleWindow) {
+        this.resampleWindow = resampleWindow;
+    }
+
+    /**
+     * Compress the CSV and JSON output files with parallel gzip, adding .gz to their names
+     *
+     * @param gzip enable compressed output files
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Indent the JSON output files and publish chunks.  By default JSON is written compactly.
+     *
+     * @param prettyPrint enable indented JSON
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Write the output files to a directory instead of the working directory
+     *
+     * @param outputDirectory existing directory of the output files
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Add the rows, bytes and stage timings of this object's exports to shared metrics
+     *
+     * @param metrics ExportMetrics of the export
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return ExportMetrics of this object's exports
+     */
+    public ExportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return number of data samples written to CSV and JSON files by this object
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Output file written by openOutputFile for this export
+     *
+     * @param filename output file name without the .gz suffix
+     * @return the output file as written by openOutputFile
+     */
+    File getOutputFile(String filename) {
+        return new File(gzip ? filename + ".gz" : filename);
+    }
+
+    /**
+     * Open an output file.  A compressed file opened for append gets a new gzip member, which gzip readers
+     * concatenate with the existing ones.
+     *
+     * @param filename output file name without the .gz suffix
+     * @param append   append to an existing file
+     * @param gzip     compress the file with parallel gzip
+     * @return OutputStream of the file
+     * @throws IOException
+     */
+    static OutputStream openOutputFile(String filename, boolean append, boolean gzip) throws IOException {
+        if (gzip) {
+            return new ParallelGZIPOutputStream(new FileOutputStream(filename + ".gz", append));
+        }
+        return new FileOutputStream(filename, append);
+    }
+
+    /**
+     * Record published chunks in a journal and resume publishing after the chunks it acknowledges
+     *
+     * @param uploadJournal journal of published chunks
+     */
+    public void setUploadJournal(UploadJournal uploadJournal) {
+        this.uploadJournal = uploadJournal;
+    }
+
+    /**
+     * Set the uploader used to publish data.  Without one, a single-threaded uploader is created on first use and
+     * closed with this object.
+     *
+     * @param uploader ChunkUploader shared by the publish calls
+     */
+    public void setUploader(ChunkUploader uploader) {
+        this.uploader = uploader;
+    }
+
+    private ChunkUploader getUploader() {
+        if (uploader == null) {
+            uploader = new ChunkUploader(pool, 1);
+            uploader.setMetrics(metrics);
+            ownsUploader = true;
+        }
+        return uploader;
+    }
+
+    /**
+     * Share the metadata of the database with other DataExport objects.  Without one, the metadata is loaded from
+     * this object's connection on first use.
+     *
+     * @param catalog MetadataCatalog of the same database
+     */
+    public void setCatalog(MetadataCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * @return MetadataCatalog of the database, loaded on first use
+     */
+    public MetadataCatalog getCatalog() {
+        if (catalog == null) {
+            catalog = new MetadataCatalog(connection);
+        }
+        return catalog;
+    }
+
+    /**
+     * Set the number of data samples per published chunk
+     *
+     * @param publishBufferSize data samples per chunk
+     */
+    public void setPublishBufferSize(int publishBufferSize) {
+        this.publishBufferSize = publishBufferSize;
+    }
+
+    /**
+     * Close the underlying database connection
+     */
+    public void close() {
+        if (ownsUploader) {
+            uploader.close();
+        }
+        if (connection != null) {
+            connection.release();
+            connection = null;
+        }
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+
     /**
      * Utility function to convert a byte[] to hex
      *
      * @param hash
      * @return
      */
-    private static String byteArray2Hex(final byte[] hash) {
+    static String byteArray2Hex(final byte[] hash) {
         Formatter formatter = new Formatter();
         for (byte b : hash) {
             formatter.format("%02x", b);
@@ -108,7 +309,7 @@ public class DataExport {
      * @param result JSON string representation of the CerebralCortexDataPackage object
      * @return
      */
-    private CerebralCortexDataPackage generateCerebralCortexHeader(UserInfo userInfo, StudyInfo studyInfo, DataSource ds) {
+    private static CerebralCortexDataPackage generateCerebralCortexHeader(UserInfo userInfo, StudyInfo studyInfo, DataSource ds) {
         CerebralCortexDataPackage obj = new CerebralCortexDataPackage();
         obj.datasource = ds;
         obj.userinfo = userInfo;
@@ -121,48 +322,111 @@ public class DataExport {
      * Generate and write a data stream to file in the JSON format
      *
      * @param id Datastream id
+     * @return true if the file was written
      */
-    public void writeJSONDataFile(Integer id) {
+    public boolean writeJSONDataFile(Integer id) {
         try {
+            if (checkpoint != null) {
+                writeNDJSONDataFile(id);
+                return true;
+            }
             String filename = getOutputFilename(id);
-            JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(filename + ".json", false), "utf-8"));
-            writer.setIndent("  ");
-            createJSONDataFileRepresentation(id, writer);
-            writer.close();
+            MeteredOutputStream out = new MeteredOutputStream(openOutputFile(filename + ".json", false, gzip), metrics, id, "json");
+            createJSONDataFileRepresentation(id, out);
+            return true;
 
         } catch (Exception e) {
             System.err.println("DataStream ID: " + id);
             e.printStackTrace();
         }
+        return false;
     }
 
-    private void createJSONDataFileRepresentation(Integer id, JsonWriter writer) throws IOException {
-        DataSource ds = getDataSource(id);
-        UserInfo userInfo = getUserInfo();
-        StudyInfo studyInfo = getStudyInfo();
+    /**
+     * Append the rows above the watermark of a data stream to a newline delimited JSON file, one data point per
+     * line.  The metadata is rewritten to a separate header file on every run.
+     *
+     * @param id Datastream id
+     * @throws IOException
+     * @throws SQLException
+     */
+    private void writeNDJSONDataFile(Integer id) throws IOException, SQLException {
+        String filename = getOutputFilename(id);
+        long watermark = checkpoint.getWatermark(Checkpoint.JSON, id);
+        boolean append = checkpoint.contains(Checkpoint.JSON, id);
+
+        JsonWriter header = new JsonWriter(new OutputStreamWriter(new FileOutputStream(filename + "_HEADER.json", false), "utf-8"));
+        header.setIndent("  ");
+        header.beginObject();
+        MetadataCatalog catalog = getCatalog();
+        createJSONMetadata(header, new GsonBuilder().setPrettyPrinting().create(), catalog.getDataSource(id), catalog.getUserInfo(), catalog.getStudyInfo());
+        header.endObject();
+        header.close();
+
+        if (!append && !hasRows(id, watermark)) {
+            return;
+        }
+        long start = System.nanoTime();
+        File output = getOutputFile(filename + "_DATA.ndjson");
+        if (append) {
+            checkpoint.truncate(Checkpoint.JSON, id, output);
+        }
+        MeteredOutputStream out = new MeteredOutputStream(openOutputFile(filename + "_DATA.ndjson", append, gzip), metrics, id, "json");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "utf-8"));
+        SQLiteIterator sqli = new SQLiteIterator(connection, id, SQLiteIterator.DEFAULT_BUFFER_SIZE, timeRange, watermark);
+        sqli.setMetrics(metrics);
+        forEachSample(sqli, new JSONSampleHandler(createJSONDataWriter(writer), writer));
+        writer.close();
+        metrics.recordStream(id, "json", sqli, out, System.nanoTime() - start);
+        rowCount += sqli.getRowCount();
+        checkpoint.update(Checkpoint.JSON, id, sqli.getLastId(), output);
+    }
 
-        createJSONHeader(writer, ds, userInfo, studyInfo);
-        if (getQueryIDs().contains(id)) {
-            SQLiteIterator sqli = new SQLiteIterator(statement, id, JSON_FILE_BUFFER_SIZE);
-            createJSONDataRepresentation(writer, sqli, false);
+    private void createJSONDataFileRepresentation(Integer id, MeteredOutputStream out) throws IOException {
+        long start = System.nanoTime();
+        JsonWriter writer = getCatalog().openJSONDataArray(id, out, prettyPrint);
+        SQLiteIterator sqli = null;
+        if (hasData(id)) {
+            sqli = new SQLiteIterator(connection, id, SQLiteIterator.DEFAULT_BUFFER_SIZE, timeRange);
+            sqli.setMetrics(metrics);
+            forEachSample(sqli, new JSONSampleHandler(createJSONDataWriter(writer), null));
+            rowCount += sqli.getRowCount();
         }
         createJSONFooter(writer);
+        writer.close();
+        if (sqli != null) {
+            metrics.recordStream(id, "json", sqli, out, System.nanoTime() - start);
+        }
     }
 
-    private void createJSONFooter(JsonWriter writer) throws IOException {
+    /**
+     * Hand every sample of a data stream to a writer, through a WindowAggregator when resampling
+     *
+     * @param sqli    SQLiteIterator of the data stream
+     * @param handler writer of the samples
+     * @throws IOException
+     */
+    private void forEachSample(SQLiteIterator sqli, SampleHandler handler) throws IOException {
+        if (resampleWindow == 0) {
+            sqli.forEachSample(handler);
+            return;
+        }
+        WindowAggregator aggregator = new WindowAggregator(resampleWindow, handler);
+        sqli.forEachSample(aggregator);
+        aggregator.flush();
+    }
+
+    static void createJSONFooter(JsonWriter writer) throws IOException {
         writer.endArray();
         writer.endObject();
     }
 
-    private boolean createJSONDataRepresentation(JsonWriter writer, Iterator iter, boolean segmentData) throws IOException {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
+    static boolean createJSONDataRepresentation(JsonWriter writer, Iterator iter, boolean segmentData) throws IOException {
+        JSONSampleHandler handler = new JSONSampleHandler(createJSONDataWriter(writer), null);
         while(iter.hasNext()) {
             List<DataType> result = (List<DataType>) iter.next();
-            System.out.println("Iterator:" + result.size());
             for (DataType dt : result) {
-                TSV entry = new TSV(dt.getDateTime(), DataTypeConverter.dataTypeToJSON(dt));
-                gson.toJson(entry, TSV.class, writer);
+                handler.handle(dt);
             }
             if(segmentData) {
                 break;
@@ -172,23 +436,94 @@ public class DataExport {
         return iter.hasNext();
     }
 
-    private Gson createJSONHeader(JsonWriter writer, DataSource ds, UserInfo userInfo, StudyInfo studyInfo) throws IOException {
+    /**
+     * Writes samples as JSON data points, looking up the DataTypeHandler only when the sample class changes
+     */
+    static class JSONSampleHandler implements SampleHandler {
+
+        private final JsonWriter writer;
+        private final Writer lineWriter;
+        private Class<? extends DataType> type = null;
+        private DataTypeHandler handler = null;
+
+        /**
+         * @param writer     JsonWriter of the data points, see createJSONDataWriter
+         * @param lineWriter Writer underneath the JsonWriter to end every data point with a newline, or null
+         */
+        JSONSampleHandler(JsonWriter writer, Writer lineWriter) {
+            this.writer = writer;
+            this.lineWriter = lineWriter;
+        }
+
+        @Override
+        public void handle(DataType sample) throws IOException {
+            if (sample.getClass() != type) {
+                type = sample.getClass();
+                handler = DataTypeHandler.forType(type);
+            }
+            writeJSONDataPoint(writer, sample, handler);
+            if (lineWriter != null) {
+                lineWriter.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Configure a JsonWriter for data points the way Gson serializes TSV entries: lenient, so that NaN and infinite
+     * samples are written, and HTML-safe
+     *
+     * @param writer JsonWriter of the data points
+     * @return the configured JsonWriter
+     */
+    static JsonWriter createJSONDataWriter(JsonWriter writer) {
+        writer.setLenient(true);
+        writer.setHtmlSafe(true);
+        return writer;
+    }
+
+    private static JsonWriter createJSONDataWriter(Writer writer) {
+        return createJSONDataWriter(new JsonWriter(writer));
+    }
+
+    /**
+     * Write one data point as {"timestamp":...,"values":[...]} straight from the sample, without building a TSV
+     * object and its JsonArray
+     *
+     * @param writer  destination writer
+     * @param dt      DataType object
+     * @param handler DataTypeHandler of the sample's class
+     * @throws IOException
+     */
+    static void writeJSONDataPoint(JsonWriter writer, DataType dt, DataTypeHandler handler) throws IOException {
+        writer.beginObject();
+        writer.name("timestamp");
+        writer.value(dt.getDateTime());
+        writer.name("values");
+        handler.writeJSON(dt, writer);
+        writer.endObject();
+    }
+
+    static Gson createJSONHeader(JsonWriter writer, DataSource ds, UserInfo userInfo, StudyInfo studyInfo) throws IOException {
         CerebralCortexDataPackage header = generateCerebralCortexHeader(userInfo, studyInfo, ds);
 
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
         writer.beginObject();
-        writer.name("userinfo");
-        gson.toJson(header.userinfo, UserInfo.class, writer);
-        writer.name("studyinfo");
-        gson.toJson(header.studyinfo, StudyInfo.class, writer);
-        writer.name("datasource");
-        gson.toJson(header.datasource, DataSource.class, writer);
+        createJSONMetadata(writer, gson, header.datasource, header.userinfo, header.studyinfo);
 
         writer.name("data");
         writer.beginArray();
         return gson;
     }
 
+    private static void createJSONMetadata(JsonWriter writer, Gson gson, DataSource ds, UserInfo userInfo, StudyInfo studyInfo) throws IOException {
+        writer.name("userinfo");
+        gson.toJson(userInfo, UserInfo.class, writer);
+        writer.name("studyinfo");
+        gson.toJson(studyInfo, StudyInfo.class, writer);
+        writer.name("datasource");
+        gson.toJson(ds, DataSource.class, writer);
+    }
+
     /**
      * Generate a Gzipped JSON byte array
      *
@@ -196,14 +531,16 @@ public class DataExport {
      * @param ds     DataSource object
      * @return byte array representing a Gzipped JSON representation of the CerebralCortexDataPackage object
      */
-    private ByteOutputArray generateGzipJSON(UserInfo ui, StudyInfo si, DataSource ds, Iterator iter, boolean segmentData) {
+    static ByteOutputArray generateGzipJSON(UserInfo ui, StudyInfo si, DataSource ds, Iterator iter, boolean segmentData, boolean prettyPrint) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         boolean additionalData = false;
         try {
-            GZIPOutputStream gzip = new GZIPOutputStream(bos);
+            ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(bos);
             OutputStreamWriter osw = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
             JsonWriter writer = new JsonWriter(osw);
-            writer.setIndent("  ");
+            if (prettyPrint) {
+                writer.setIndent("  ");
+            }
             createJSONHeader(writer, ds, ui, si);
             additionalData = createJSONDataRepresentation(writer, iter, segmentData);
             createJSONFooter(writer);
@@ -222,100 +559,213 @@ public class DataExport {
      * present in the CSV files.
      *
      * @param id Datastream id
+     * @return true if the file was written or the data stream has no rows to write
      */
-    public void writeCSVDataFile(Integer id) {
+    public boolean writeCSVDataFile(Integer id) {
         try {
             String filename = getOutputFilename(id);
+            long watermark = checkpoint == null ? 0 : checkpoint.getWatermark(Checkpoint.CSV, id);
+            boolean append = checkpoint != null && checkpoint.contains(Checkpoint.CSV, id);
 
-
-            if (getQueryIDs().contains(id)) {
-                Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename + "_DATA.csv", false), "utf-8"));
-                SQLiteIterator sqli = new SQLiteIterator(statement, id, CSV_BUFFER_SIZE);
-                while (sqli.hasNext()) {
-                    List<DataType> result = sqli.next();
-                    System.out.println("Iterator:" + result.size());
-                    for (DataType dt : result) {
-                        writer.write(DataTypeConverter.dataTypeToString(dt) + "\n");
-                    }
+            if (checkpoint == null ? hasData(id) : append || hasRows(id, watermark)) {
+                File output = getOutputFile(filename + "_DATA.csv");
+                if (append) {
+                    checkpoint.truncate(Checkpoint.CSV, id, output);
+                }
+                SQLiteIterator sqli = writeCSVRows(id, filename + "_DATA.csv", append, watermark, Long.MAX_VALUE);
+                if (checkpoint != null) {
+                    checkpoint.update(Checkpoint.CSV, id, sqli.getLastId(), output);
                 }
-                writer.close();
-
             }
-
+            return true;
 
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return false;
     }
 
     /**
-     * Retrieve the user id from its data stream
+     * Stream the samples of a data stream in the time range, in _id order.  The stream is split by a count of the rows
+     * and reads through its own connections: a parallel stream splits the rows into _id ranges that are read and
+     * decoded on separate connections, up to one per thread of the common fork/join pool.  The connections are
+     * closed once every sample has been read; close the stream if it is not consumed entirely.
      *
-     * @return populated UserInfo object
+     * @param id Datastream id
+     * @return sequential Stream of the samples, see DataStreamSpliterator
      */
-    private UserInfo getUserInfo() {
-        UserInfo result = new UserInfo();
+    public Stream<DataType> stream(Integer id) {
+        ConnectionPool streamPool = pool.withSize(ForkJoinPool.getCommonPoolParallelism() + 1);
+        DataStreamSpliterator spliterator = new DataStreamSpliterator(streamPool, id, timeRange, countRows(id));
+        return StreamSupport.stream(spliterator, false).onClose(streamPool::close);
+    }
 
-        int streamID = -1;
+    /**
+     * Count the rows of a data stream in the time range.  Without a time range, the count is taken from the catalog.
+     *
+     * @param id Datastream id
+     * @return number of rows
+     */
+    public long countRows(Integer id) {
+        if (timeRange.isAll()) {
+            Integer size = getCatalog().getStreamSizes().get(id);
+            return size == null ? 0 : size;
+        }
         try {
-            ResultSet rs = statement.executeQuery("select ds_id from datasources where datasources.datasource_type=='USER_INFO'");
-            while (rs.next()) {
-                streamID = rs.getInt("ds_id");
-            }
+            PreparedStatement statement = connection.prepare("Select count(*) from data where datasource_id = ?" + timeRange.toSQL());
+            statement.setInt(1, id);
+            timeRange.bind(statement, 2);
+            ResultSet rs = statement.executeQuery();
+            long result = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            return result;
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return 0;
+    }
 
-        if (streamID >= 0) {
-            SQLiteIterator sqli = new SQLiteIterator(statement, streamID, SHORT_BUFFER_SIZE);
-            while(sqli.hasNext()) {
-                List<DataType> user = sqli.next();
-                for (DataType dt : user) {
-                    String[] json = DataTypeConverter.dataTypeToString(dt).split(",", 2);
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    UserInfo ui = gson.fromJson(json[1], UserInfo.class);
-                    if (!ui.uuid.isEmpty()) {
-                        return ui;
-                    }
-
-                }
+    /**
+     * Write the rows of a data stream in an _id range to a CSV file
+     *
+     * @param id       Datastream id
+     * @param filename output file name without the .gz suffix
+     * @param append   append to an existing file
+     * @param afterId  _id preceding the range
+     * @param endId    last _id of the range, Long.MAX_VALUE for no limit
+     * @return SQLiteIterator that was read to the end
+     * @throws IOException
+     */
+    private SQLiteIterator writeCSVRows(Integer id, String filename, boolean append, long afterId, long endId) throws IOException {
+        long start = System.nanoTime();
+        MeteredOutputStream out = new MeteredOutputStream(openOutputFile(filename, append, gzip), metrics, id, "csv");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "utf-8"));
+        SQLiteIterator sqli = new SQLiteIterator(connection, id, SQLiteIterator.DEFAULT_BUFFER_SIZE, timeRange, afterId, endId);
+        sqli.setMetrics(metrics);
+        final CSVFormatter formatter = new CSVFormatter();
+        forEachSample(sqli, new SampleHandler() {
+            @Override
+            public void handle(DataType sample) throws IOException {
+                formatter.write(sample, writer);
             }
+        });
+        writer.close();
+        metrics.recordStream(id, "csv", sqli, out, System.nanoTime() - start);
+        rowCount += sqli.getRowCount();
+        return sqli;
+    }
+
+    /**
+     * Write the rows of a data stream in an _id range to a part of its CSV file, see PartitionedStream
+     *
+     * @param id       Datastream id
+     * @param filename part file name without the .gz suffix
+     * @param afterId  _id preceding the range
+     * @param endId    last _id of the range
+     * @return number of data samples written
+     * @throws IOException
+     */
+    long writeCSVDataPart(Integer id, String filename, long afterId, long endId) throws IOException {
+        return writeCSVRows(id, filename, false, afterId, endId).getRowCount();
+    }
+
+    /**
+     * Write the data points of a data stream in an _id range to a part of its JSON file, without the header, the
+     * footer or a comma in front of the first data point, see PartitionedStream
+     *
+     * @param id       Datastream id
+     * @param filename part file name without the .gz suffix
+     * @param afterId  _id preceding the range
+     * @param endId    last _id of the range
+     * @return number of data samples written
+     * @throws IOException
+     */
+    long writeJSONDataPart(Integer id, String filename, long afterId, long endId) throws IOException {
+        long start = System.nanoTime();
+        MeteredOutputStream out = new MeteredOutputStream(openOutputFile(filename, false, gzip), metrics, id, "json");
+        JsonWriter writer = MetadataCatalog.continueJSONDataArray(out, prettyPrint);
+        SQLiteIterator sqli = new SQLiteIterator(connection, id, SQLiteIterator.DEFAULT_BUFFER_SIZE, timeRange, afterId, endId);
+        sqli.setMetrics(metrics);
+        forEachSample(sqli, new JSONSampleHandler(createJSONDataWriter(writer), null));
+        // the data array stays open, so flush the writer instead of closing it
+        writer.flush();
+        out.close();
+        metrics.recordStream(id, "json", sqli, out, System.nanoTime() - start);
+        rowCount += sqli.getRowCount();
+        return sqli.getRowCount();
+    }
+
+    /**
+     * Cut the _id range of a data stream in the time range into contiguous parts of equal width
+     *
+     * @param id    Datastream id
+     * @param parts number of parts
+     * @return _id preceding each part followed by the last _id of the last part, or null if the data stream has no
+     * rows in the time range
+     * @throws SQLException
+     */
+    long[] getPartitionBounds(Integer id, int parts) throws SQLException {
+        PreparedStatement statement = connection.prepare("Select min(_id), max(_id) from data where datasource_id = ?" + timeRange.toSQL());
+        statement.setInt(1, id);
+        timeRange.bind(statement, 2);
+        ResultSet rs = statement.executeQuery();
+        long first = 0;
+        long last = 0;
+        if (rs.next()) {
+            first = rs.getLong(1);
+            last = rs.getLong(2);
+        }
+        rs.close();
+        // min and max are null without rows, and _id starts at 1
+        if (last == 0) {
+            return null;
         }
+        parts = (int) Math.max(1, Math.min(parts, last - first + 1));
+        long[] bounds = new long[parts + 1];
+        for (int i = 0; i < parts; i++) {
+            bounds[i] = first - 1 + (last - first + 1) * i / parts;
+        }
+        bounds[parts] = last;
+        return bounds;
+    }
+
+    /**
+     * Check for rows of a data stream above a watermark without scanning the rows below it
+     *
+     * @param id        Datastream id
+     * @param watermark highest _id already exported
+     * @return true if the data stream has rows in the time range above the watermark
+     * @throws SQLException
+     */
+    private boolean hasRows(Integer id, long watermark) throws SQLException {
+        PreparedStatement statement = connection.prepare("Select _id from data where _id > ? and datasource_id = ?" + timeRange.toSQL() + " limit 1");
+        statement.setLong(1, watermark);
+        statement.setInt(2, id);
+        timeRange.bind(statement, 3);
+        ResultSet rs = statement.executeQuery();
+        boolean result = rs.next();
+        rs.close();
         return result;
     }
 
     /**
-     * Retrieve the study id and study name from its data stream
+     * Check whether a data stream has rows without counting them, see MetadataCatalog.hasData.  With a time range,
+     * only the rows in the range count, and the first one is looked up with the datetime predicate so that a
+     * (datasource_id, datetime) index answers it.
      *
-     * @return populated StudyInfo object
+     * @param id Datastream id
+     * @return true if the data stream has rows in the time range
      */
-    private StudyInfo getStudyInfo() {
-        StudyInfo result = new StudyInfo();
-        int streamID = -1;
+    public boolean hasData(Integer id) {
+        if (timeRange.isAll()) {
+            return getCatalog().hasData(connection, id);
+        }
         try {
-            ResultSet rs = statement.executeQuery("select ds_id from datasources where datasources.datasource_type=='STUDY_INFO'");
-            while (rs.next()) {
-                streamID = rs.getInt("ds_id");
-            }
+            return hasRows(id, 0);
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        if (streamID >= 0) {
-            SQLiteIterator sqli = new SQLiteIterator(statement, streamID, SHORT_BUFFER_SIZE);
-            while(sqli.hasNext()) {
-                List<DataType> study = sqli.next();
-                for (DataType dt : study) {
-                    String[] json = DataTypeConverter.dataTypeToString(dt).split(",", 2);
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    StudyInfo si = gson.fromJson(json[1], StudyInfo.class);
-                    if (!si.id.isEmpty()) {
-                        return si;
-                    }
-
-                }
-            }
-        }
-        return result;
+        return false;
     }
 
     /**
@@ -324,16 +774,7 @@ public class DataExport {
      * @return List of ids
      */
     public List<Integer> getIDs() {
-        List<Integer> ids = new ArrayList<Integer>();
-        try {
-            ResultSet rs = statement.executeQuery("Select ds_id from datasources");
-            while (rs.next()) {
-                ids.add(rs.getInt("ds_id"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return ids;
+        return new ArrayList<Integer>(getCatalog().getIDs());
     }
 
     /**
@@ -342,144 +783,142 @@ public class DataExport {
      * @return List of ids
      */
     public List<Integer> getQueryIDs() {
-        List<Integer> ids = new ArrayList<Integer>();
-        try {
-            ResultSet rs = statement.executeQuery("Select datasource_id as ds_id from data group by datasource_id");
-            while (rs.next()) {
-                ids.add(rs.getInt("ds_id"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return ids;
+        return new ArrayList<Integer>(getCatalog().getStreamSizes().keySet());
     }
 
     /**
-     * Generate an output filename based on the datastream id
+     * Retrieve the number of rows stored for each datasource id
      *
-     * @param id Datastream id
-     * @return String identifier for a filename
+     * @return Map of datasource id to row count
      */
-    private String getOutputFilename(Integer id) {
-        String filename = "";
-        List<String> parameters = new ArrayList<String>();
-        try {
-            ResultSet rs = statement.executeQuery("Select * from datasources where ds_id = " + id);
-            while (rs.next()) {
-                parameters.add(Integer.toString(rs.getInt("ds_id")));
-                parameters.add(rs.getString("datasource_id"));
-                parameters.add(rs.getString("datasource_type"));
-                parameters.add(rs.getString("platform_id"));
-                parameters.add(rs.getString("platform_type"));
-                parameters.add(rs.getString("platformapp_id"));
-                parameters.add(rs.getString("platformapp_type"));
-                parameters.add(rs.getString("application_id"));
-                parameters.add(rs.getString("application_type"));
-
-            }
-            filename = String.join("_", parameters);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return filename;
+    public Map<Integer, Integer> getStreamSizes() {
+        return getCatalog().getStreamSizes();
     }
 
     /**
-     * Get datasource from the database and decode it
+     * Generate an output filename based on the datastream id
      *
-     * @param id Datasource id to retrieve
-     * @return DataSource object populated from the database
+     * @param id Datastream id
+     * @return String identifier for a filename, in the output directory if one is set
      */
-    private DataSource getDataSource(Integer id) {
-        DataSource result = null;
-        try {
-            ResultSet rs = statement.executeQuery("Select datasource from datasources where ds_id = " + id);
-            while (rs.next()) {
-                byte[] b = rs.getBytes("datasource");
-                Input input = new Input(new ByteArrayInputStream(b));
-                result = (DataSource) kryo.readClassAndObject(input);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return result;
+    String getOutputFilename(Integer id) {
+        String filename = getCatalog().getOutputFilename(id);
+        return outputDirectory == null ? filename : new File(outputDirectory, filename).getPath();
     }
 
     public boolean publishTimeSeriesDataStream(String requestURL, List<DataType> data, UserInfo ui, StudyInfo si, DataSource ds) {
         ListIterator<DataType> iter = data.listIterator();
         byte[] d = null;
-        ByteOutputArray boa = generateGzipJSON(ui, si, ds, iter, true);
+        ByteOutputArray boa = generateGzipJSON(ui, si, ds, iter, true, prettyPrint);
 
-        return publishData(requestURL, boa.data);
+        return publishData(requestURL, boa.data).isAcknowledged();
     }
 
     /**
-     * Upload method for publishing data to the Cerebral Cortex webservice
+     * Upload method for publishing data to the Cerebral Cortex webservice.  Each chunk is streamed from the database
+     * as gzipped JSON while it is sent, and up to the uploader concurrency chunks are in flight at a time.  A chunk is
+     * the next publishBufferSize rows, read with a row limit; the following chunk starts after the last _id its body
+     * reports, so the chunk boundaries cost no extra query.  If an upload journal is set, every chunk is recorded in
+     * it and the chunks acknowledged by a previous run are skipped.
      *
      * @param request URL
      * @param id      of the datastream to publish
      */
     public boolean publishGzipJSONData(String request, Integer id) {
-        DataSource ds = getDataSource(id);
-        UserInfo userInfo = getUserInfo();
-        StudyInfo studyInfo = getStudyInfo();
+        MetadataCatalog catalog = getCatalog();
+        ChunkUploader chunkUploader = getUploader();
 
-        SQLiteIterator sqli = new SQLiteIterator(statement, id, PUBLISH_BUFFER_SIZE);
+        long afterId = uploadJournal == null ? 0 : uploadJournal.getAcknowledged(id);
+        if (afterId > 0) {
+            System.out.println("Resuming after _id " + afterId);
+        }
 
-        boolean success = false;
-        ByteOutputArray boa;
+        Deque<Future<UploadResponse>> pending = new ArrayDeque<Future<UploadResponse>>();
+        boolean success = true;
         int count = 0;
-        do {
-            System.out.print("Iteration: " + count++ + " ... ");
-            boa = generateGzipJSON(userInfo, studyInfo, ds, sqli, true);
-            success = publishData(request, boa.data);
-            System.out.println("Done");
-            if (!success) {
-                return success;
+        try {
+            while (success && (afterId == 0 || hasRows(id, afterId))) {
+                long acknowledgedId = uploadJournal == null ? -1 : uploadJournal.getAcknowledged(id, afterId);
+                if (acknowledgedId > afterId) {
+                    System.out.println("Skipping acknowledged chunk after _id " + afterId + " through _id " + acknowledgedId);
+                    afterId = acknowledgedId;
+                    continue;
+                }
+                System.out.println("Iteration: " + count++);
+                CompletableFuture<Long> chunkEnd = new CompletableFuture<Long>();
+                pending.add(chunkUploader.upload(request, id, timeRange, afterId, publishBufferSize, catalog, prettyPrint, uploadJournal, chunkEnd));
+                while (success && pending.size() >= chunkUploader.getConcurrency()) {
+                    success = isAcknowledged(pending.poll());
+                }
+                long endId = getChunkEnd(chunkEnd, afterId);
+                if (endId <= afterId) {
+                    break;
+                }
+                afterId = endId;
             }
-        } while (boa.additionalData);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            success = false;
+        }
+        while (!pending.isEmpty()) {
+            success &= isAcknowledged(pending.poll());
+        }
         return success;
     }
 
+    private static boolean isAcknowledged(Future<UploadResponse> future) {
+        try {
+            return future.get().isAcknowledged();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        return false;
+    }
 
+    /**
+     * Wait for the last _id of a chunk, which its body reports once the chunk has been read
+     *
+     * @param chunkEnd future completed by the upload of the chunk
+     * @param afterId  _id preceding the chunk
+     * @return last _id of the chunk, or afterId if the chunk is empty or could not be read
+     */
+    private static long getChunkEnd(Future<Long> chunkEnd, long afterId) {
+        try {
+            return chunkEnd.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        return afterId;
+    }
 
     /**
      * Upload method for publishing data to the Cerebral Cortex webservice
      *
      * @param request URL
      * @param data    Byte[] of data to send to Cerebral Cortex
+     * @return UploadResponse with the hash of the data and the status of the request, 0 if it failed without a response
      */
-    private boolean publishData(String request, byte[] data) {
+    private UploadResponse publishData(String request, byte[] data) {
         String hash = null;
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
             hash = byteArray2Hex(md.digest(data));
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
-            return false;
+            return new UploadResponse(hash, 0, e.getMessage());
         }
 
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
-        HttpPost post = new HttpPost(request);
-
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
         builder.addBinaryBody("file", data, ContentType.DEFAULT_BINARY, "file");
         builder.addTextBody("hash", hash, ContentType.DEFAULT_TEXT);
 
-        HttpEntity entity = builder.build();
-        post.setEntity(entity);
-        HttpResponse response;
-        try {
-            response = client.execute(post);
-            System.out.println(response);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-
-        return true;
+        return getUploader().post(request, builder.build(), hash);
     }
 
 }
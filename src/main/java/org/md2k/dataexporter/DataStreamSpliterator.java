@@ -0,0 +1,242 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.datakitapi.datatype.DataType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the samples of a data stream, in _id order.  Its size estimate is the number of rows of the data
+ * stream, counted once up front; trySplit cuts the _id range at the row in the middle, so both halves know how many
+ * rows they hold.  The spliterator is not SIZED: a row whose sample cannot be decoded is skipped, as in the exports,
+ * so the row count is only an upper bound of the number of samples, and a SIZED stream would pad toArray with nulls or
+ * fail on such a data stream.
+ * <p>
+ * Every spliterator reads through its own connection from a pool that has a connection for each spliterator that can
+ * be created, so a parallel stream decodes on several connections at once and never waits for one.  The pool is
+ * closed when every spliterator has reached the end of its range; a stream that is not consumed entirely should be
+ * closed to close it.
+ */
+public class DataStreamSpliterator implements Spliterator<DataType> {
+
+    private static final int MIN_SPLIT_SIZE = 10000;
+
+    private final Source source;
+    private long afterId;
+    private final long endId;
+    private long size;
+
+    private PooledConnection connection = null;
+    private SQLiteIterator sqli = null;
+    private boolean done = false;
+
+    /**
+     * Build a DataStreamSpliterator over the samples of a data stream in a time range
+     *
+     * @param pool      ConnectionPool owned by the spliterator; its size bounds the number of splits
+     * @param id        Datastream id
+     * @param timeRange time range of the samples
+     * @param size      number of rows of the data stream in the time range
+     */
+    public DataStreamSpliterator(ConnectionPool pool, Integer id, TimeRange timeRange, long size) {
+        this(new Source(pool, id, timeRange), 0, Long.MAX_VALUE, size);
+    }
+
+    private DataStreamSpliterator(Source source, long afterId, long endId, long size) {
+        this.source = source;
+        this.afterId = afterId;
+        this.endId = endId;
+        this.size = size;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super DataType> action) {
+        if (done) {
+            return false;
+        }
+        try {
+            if (open().tryAdvance(action::accept)) {
+                size = Math.max(0, size - 1);
+                return true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finish();
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super DataType> action) {
+        if (done) {
+            return;
+        }
+        try {
+            open().forEachSample(action::accept);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Split off the first half of the rows, unless this spliterator has started reading, the rows are too few to be
+     * worth another connection or every connection of the pool is taken
+     *
+     * @return spliterator over the first half of the rows, or null
+     */
+    @Override
+    public Spliterator<DataType> trySplit() {
+        if (sqli != null || done || size < 2 * MIN_SPLIT_SIZE || !source.reserve()) {
+            return null;
+        }
+        long half = size / 2;
+        long middle;
+        try {
+            middle = findRow(half);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            middle = -1;
+        }
+        if (middle < 0) {
+            source.unreserve();
+            return null;
+        }
+        DataStreamSpliterator prefix = new DataStreamSpliterator(source, afterId, middle, half);
+        afterId = middle;
+        size -= half;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Find the _id of a row of the range, counting from 1
+     *
+     * @param n position of the row
+     * @return _id of the row, or -1 if the range has fewer rows
+     * @throws SQLException
+     */
+    private long findRow(long n) throws SQLException {
+        String range = "_id > ?" + (endId == Long.MAX_VALUE ? "" : " and _id <= ?");
+        PreparedStatement statement = acquire().prepare("Select _id from data where " + range + " and datasource_id = ?"
+                + source.timeRange.toSQL() + " order by _id limit 1 offset ?");
+        int index = 1;
+        statement.setLong(index++, afterId);
+        if (endId != Long.MAX_VALUE) {
+            statement.setLong(index++, endId);
+        }
+        statement.setInt(index++, source.id);
+        statement.setLong(source.timeRange.bind(statement, index), n - 1);
+        ResultSet rs = statement.executeQuery();
+        long result = rs.next() ? rs.getLong("_id") : -1;
+        rs.close();
+        return result;
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        if (connection == null) {
+            connection = source.pool.acquire();
+        }
+        return connection;
+    }
+
+    private SQLiteIterator open() throws IOException {
+        if (sqli == null) {
+            try {
+                sqli = new SQLiteIterator(acquire(), source.id, SQLiteIterator.DEFAULT_BUFFER_SIZE, source.timeRange, afterId, endId);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+        return sqli;
+    }
+
+    private void finish() {
+        done = true;
+        size = 0;
+        if (connection != null) {
+            connection.release();
+            connection = null;
+        }
+        if (source.open.decrementAndGet() == 0) {
+            source.pool.close();
+        }
+    }
+
+    /**
+     * State shared by a spliterator and the spliterators split from it
+     */
+    private static class Source {
+        final ConnectionPool pool;
+        final Integer id;
+        final TimeRange timeRange;
+        // spliterators that have not reached the end of their range
+        final AtomicInteger open = new AtomicInteger(1);
+        // connections of the pool that no spliterator has claimed
+        final AtomicInteger available;
+
+        Source(ConnectionPool pool, Integer id, TimeRange timeRange) {
+            this.pool = pool;
+            this.id = id;
+            this.timeRange = timeRange;
+            this.available = new AtomicInteger(pool.getSize() - 1);
+        }
+
+        boolean reserve() {
+            if (available.getAndDecrement() > 0) {
+                open.incrementAndGet();
+                return true;
+            }
+            available.incrementAndGet();
+            return false;
+        }
+
+        void unreserve() {
+            open.decrementAndGet();
+            available.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
+import org.md2k.datakitapi.datatype.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Type-specialized conversions for one concrete DataType class.  A data stream always holds a single DataType class,
+ * so the handler is looked up once per stream with forType and then called directly for every sample instead of
+ * testing each sample against the whole DataType hierarchy.
+ */
+public abstract class DataTypeHandler {
+
+    private static final String SEPARATOR = ", ";
+    private static final Gson GSON = new Gson();
+
+    private static final Map<Class<? extends DataType>, DataTypeHandler> HANDLERS = new HashMap<Class<? extends DataType>, DataTypeHandler>();
+
+    private static final DataTypeHandler UNKNOWN = new DataTypeHandler() {
+        @Override
+        public void appendCSV(DataType dt, StringBuilder line) {
+            System.out.println("Unknown Object");
+        }
+
+        @Override
+        public JsonArray toJSON(DataType dt) {
+            System.out.println("Unknown Object");
+            return new JsonArray();
+        }
+
+        @Override
+        public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+            System.out.println("Unknown Object");
+            writer.beginArray();
+            writer.endArray();
+        }
+    };
+
+    static {
+        HANDLERS.put(DataTypeBoolean.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeBoolean) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeBoolean) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.value(((DataTypeBoolean) dt).getSample());
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return 1;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeBoolean) dt).getSample() ? 1 : 0;
+            }
+        });
+        HANDLERS.put(DataTypeBooleanArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (boolean d : ((DataTypeBooleanArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (boolean d : ((DataTypeBooleanArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (boolean d : ((DataTypeBooleanArray) dt).getSample()) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return ((DataTypeBooleanArray) dt).getSample().length;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeBooleanArray) dt).getSample()[index] ? 1 : 0;
+            }
+        });
+        HANDLERS.put(DataTypeJSONObject.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeJSONObject) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeJSONObject) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                GSON.toJson(((DataTypeJSONObject) dt).getSample(), writer);
+                writer.endArray();
+            }
+        });
+        HANDLERS.put(DataTypeJSONObjectArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeJSONObjectArray) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeJSONObjectArray) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                GSON.toJson(((DataTypeJSONObjectArray) dt).getSample(), writer);
+                writer.endArray();
+            }
+        });
+        HANDLERS.put(DataTypeByte.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeByte) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeByte) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.value(((DataTypeByte) dt).getSample());
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return 1;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeByte) dt).getSample();
+            }
+        });
+        HANDLERS.put(DataTypeByteArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (byte d : ((DataTypeByteArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (byte d : ((DataTypeByteArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (byte d : ((DataTypeByteArray) dt).getSample()) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return ((DataTypeByteArray) dt).getSample().length;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeByteArray) dt).getSample()[index];
+            }
+        });
+        HANDLERS.put(DataTypeDouble.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeDouble) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeDouble) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.value(((DataTypeDouble) dt).getSample());
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return 1;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeDouble) dt).getSample();
+            }
+        });
+        HANDLERS.put(DataTypeDoubleArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (double d : ((DataTypeDoubleArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (double d : ((DataTypeDoubleArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (double d : ((DataTypeDoubleArray) dt).getSample()) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return ((DataTypeDoubleArray) dt).getSample().length;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeDoubleArray) dt).getSample()[index];
+            }
+        });
+        HANDLERS.put(DataTypeFloat.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeFloat) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeFloat) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.jsonValue(Float.toString(((DataTypeFloat) dt).getSample()));
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return 1;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeFloat) dt).getSample();
+            }
+        });
+        HANDLERS.put(DataTypeFloatArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (float d : ((DataTypeFloatArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (float d : ((DataTypeFloatArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (float d : ((DataTypeFloatArray) dt).getSample()) {
+                    writer.jsonValue(Float.toString(d));
+                }
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return ((DataTypeFloatArray) dt).getSample().length;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeFloatArray) dt).getSample()[index];
+            }
+        });
+        HANDLERS.put(DataTypeInt.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeInt) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeInt) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.value(((DataTypeInt) dt).getSample());
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return 1;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeInt) dt).getSample();
+            }
+        });
+        HANDLERS.put(DataTypeIntArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (int d : ((DataTypeIntArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (int d : ((DataTypeIntArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (int d : ((DataTypeIntArray) dt).getSample()) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return ((DataTypeIntArray) dt).getSample().length;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeIntArray) dt).getSample()[index];
+            }
+        });
+        HANDLERS.put(DataTypeLong.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeLong) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeLong) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.value(((DataTypeLong) dt).getSample());
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return 1;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeLong) dt).getSample();
+            }
+        });
+        HANDLERS.put(DataTypeLongArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (long d : ((DataTypeLongArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (long d : ((DataTypeLongArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (long d : ((DataTypeLongArray) dt).getSample()) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            }
+
+            @Override
+            public int getValueCount(DataType dt) {
+                return ((DataTypeLongArray) dt).getSample().length;
+            }
+
+            @Override
+            public double getValue(DataType dt, int index) {
+                return ((DataTypeLongArray) dt).getSample()[index];
+            }
+        });
+        HANDLERS.put(DataTypeString.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                line.append(SEPARATOR).append(((DataTypeString) dt).getSample());
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                temp.add(((DataTypeString) dt).getSample());
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                writer.value(((DataTypeString) dt).getSample());
+                writer.endArray();
+            }
+        });
+        HANDLERS.put(DataTypeStringArray.class, new DataTypeHandler() {
+            @Override
+            public void appendCSV(DataType dt, StringBuilder line) {
+                line.append(dt.getDateTime());
+                for (String d : ((DataTypeStringArray) dt).getSample()) {
+                    line.append(SEPARATOR).append(d);
+                }
+            }
+
+            @Override
+            public JsonArray toJSON(DataType dt) {
+                JsonArray temp = new JsonArray();
+                for (String d : ((DataTypeStringArray) dt).getSample()) {
+                    temp.add(d);
+                }
+                return temp;
+            }
+
+            @Override
+            public void writeJSON(DataType dt, JsonWriter writer) throws IOException {
+                writer.beginArray();
+                for (String d : ((DataTypeStringArray) dt).getSample()) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            }
+        });
+    }
+
+    /**
+     * Look up the handler for a concrete DataType class
+     *
+     * @param type DataType class of a data stream
+     * @return handler specialized for the class
+     */
+    public static DataTypeHandler forType(Class<? extends DataType> type) {
+        DataTypeHandler handler = HANDLERS.get(type);
+        return handler == null ? UNKNOWN : handler;
+    }
+
+    /**
+     * Append the CSV representation (timestamp and values) of a sample to a line buffer
+     *
+     * @param dt   DataType object of the handler's class
+     * @param line destination buffer
+     */
+    public abstract void appendCSV(DataType dt, StringBuilder line);
+
+    /**
+     * Build the JSON array of values of a sample
+     *
+     * @param dt DataType object of the handler's class
+     * @return JsonArray of sample values
+     */
+    public abstract JsonArray toJSON(DataType dt);
+
+    /**
+     * Write the JSON array of values of a sample directly to a JsonWriter.  The output is the same as serializing
+     * toJSON with Gson, without building the intermediate JsonArray.
+     *
+     * @param dt     DataType object of the handler's class
+     * @param writer destination writer
+     * @throws IOException
+     */
+    public abstract void writeJSON(DataType dt, JsonWriter writer) throws IOException;
+
+    /**
+     * Number of numeric values of a sample, see getValue.  Booleans count as 0 and 1.
+     *
+     * @param dt DataType object of the handler's class
+     * @return number of values, or -1 if the samples of the handler's class are not numeric
+     */
+    public int getValueCount(DataType dt) {
+        return -1;
+    }
+
+    /**
+     * Read one value of a numeric sample without boxing it
+     *
+     * @param dt    DataType object of the handler's class
+     * @param index position of the value, below getValueCount
+     * @return the value as a double
+     */
+    public double getValue(DataType dt, int index) {
+        throw new UnsupportedOperationException(dt.getClass().getSimpleName() + " samples are not numeric");
+    }
+}
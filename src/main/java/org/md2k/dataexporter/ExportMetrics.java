@@ -0,0 +1,380 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for an export: rows and bytes written, decode failures, the time spent in each stage and a summary of every
+ * data stream.  Counters are updated from every worker thread, so they are atomics, and the exporters add to them in
+ * batches rather than per row.  The metrics can print a progress line periodically and write a JSON report at the end.
+ */
+public class ExportMetrics {
+
+    /**
+     * Stages of an export.  QUERY is SQLite stepping through rows, DECODE is Kryo, CONVERT is formatting the data points,
+     * WRITE is the output stream, COMPRESS is gzip and UPLOAD is the HTTP request.  Parallel stages add up their time on
+     * every thread, so their total can be larger than the elapsed time.
+     */
+    public enum Stage {QUERY, DECODE, CONVERT, WRITE, COMPRESS, UPLOAD}
+
+    private final long started;
+    private final AtomicLongArray stageNanos;
+    private final AtomicLong rows;
+    private final AtomicLong expectedRows;
+    private final AtomicLong bytes;
+    private final AtomicLong databaseBytes;
+    private final AtomicLong decodeFailures;
+    private final Map<String, StreamMetrics> streams;
+    private final String database;
+    private ScheduledExecutorService progress;
+
+    public ExportMetrics() {
+        started = System.nanoTime();
+        stageNanos = new AtomicLongArray(Stage.values().length);
+        rows = new AtomicLong();
+        expectedRows = new AtomicLong();
+        bytes = new AtomicLong();
+        databaseBytes = bytes;
+        decodeFailures = new AtomicLong();
+        streams = new TreeMap<String, StreamMetrics>();
+        database = null;
+    }
+
+    private ExportMetrics(ExportMetrics metrics, String database) {
+        started = metrics.started;
+        stageNanos = metrics.stageNanos;
+        rows = metrics.rows;
+        expectedRows = metrics.expectedRows;
+        bytes = metrics.bytes;
+        databaseBytes = new AtomicLong();
+        decodeFailures = metrics.decodeFailures;
+        streams = metrics.streams;
+        this.database = database;
+    }
+
+    /**
+     * Metrics of one database of a batch export.  They share the counters of these metrics, and their data streams are
+     * reported with the database, so that streams with the same id in different databases are kept apart.  The bytes
+     * written for the database are also counted on their own.
+     *
+     * @param database Database file
+     * @return ExportMetrics of the database
+     */
+    public ExportMetrics forDatabase(String database) {
+        return new ExportMetrics(this, database);
+    }
+
+    /**
+     * Add time to a stage
+     *
+     * @param stage Stage of the export
+     * @param nanos Time in nanoseconds
+     */
+    public void add(Stage stage, long nanos) {
+        if (nanos > 0) {
+            stageNanos.addAndGet(stage.ordinal(), nanos);
+        }
+    }
+
+    /**
+     * @param stage Stage of the export
+     * @return Time spent in the stage, in nanoseconds
+     */
+    public long getNanos(Stage stage) {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    /**
+     * Count rows that have been exported, used for progress
+     *
+     * @param n Number of rows
+     */
+    public void addRows(long n) {
+        rows.addAndGet(n);
+    }
+
+    /**
+     * Count rows the export is expected to write, used for the progress percentage and the ETA
+     *
+     * @param n Number of rows
+     */
+    public void addExpectedRows(long n) {
+        expectedRows.addAndGet(n);
+    }
+
+    /**
+     * Count bytes written, before compression
+     *
+     * @param n Number of bytes
+     */
+    public void addBytes(long n) {
+        bytes.addAndGet(n);
+        if (databaseBytes != bytes) {
+            databaseBytes.addAndGet(n);
+        }
+    }
+
+    /**
+     * Count samples that could not be decoded
+     *
+     * @param n Number of samples
+     */
+    public void addDecodeFailures(long n) {
+        decodeFailures.addAndGet(n);
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return bytes written, before compression, through the metrics of this database, or through all metrics if they
+     * are not for a database
+     */
+    public long getDatabaseBytes() {
+        return databaseBytes.get();
+    }
+
+    public long getDecodeFailures() {
+        return decodeFailures.get();
+    }
+
+    /**
+     * Add to the summary of a data stream in one output format
+     *
+     * @param id     Datastream id
+     * @param format Output format
+     * @param rows   Number of rows
+     * @param bytes  Number of bytes
+     * @param nanos  Time in nanoseconds
+     */
+    public void addStream(Integer id, String format, long rows, long bytes, long nanos) {
+        synchronized (streams) {
+            String key = (database == null ? "" : database + "\n") + String.format("%08d %s", id, format);
+            StreamMetrics stream = streams.get(key);
+            if (stream == null) {
+                stream = new StreamMetrics(database, id, format);
+                streams.put(key, stream);
+            }
+            stream.rows += rows;
+            stream.bytes += bytes;
+            stream.nanos += nanos;
+        }
+    }
+
+    /**
+     * Add the query and decode time and the decode failures of an iterator that has been read to the end
+     *
+     * @param sqli SQLiteIterator
+     */
+    public void recordIterator(SQLiteIterator sqli) {
+        add(Stage.QUERY, sqli.getQueryNanos());
+        add(Stage.DECODE, sqli.getDecodeNanos());
+        addDecodeFailures(sqli.getFailureCount());
+    }
+
+    /**
+     * Add the write and compression time and the bytes of a closed output stream
+     *
+     * @param id     Datastream id
+     * @param format Output format
+     * @param out    MeteredOutputStream
+     */
+    public void recordOutput(Integer id, String format, MeteredOutputStream out) {
+        long compress = out.getCompressNanos();
+        add(Stage.WRITE, out.getNanos() - compress);
+        add(Stage.COMPRESS, compress);
+        addStream(id, format, 0, out.getCount(), 0);
+    }
+
+    /**
+     * Add a data stream that has been exported.  The time that is not accounted for by the query, decode and write
+     * stages is counted as conversion.
+     *
+     * @param id     Datastream id
+     * @param format Output format
+     * @param sqli   SQLiteIterator that has been read to the end
+     * @param out    MeteredOutputStream of the output file
+     * @param nanos  Time taken by the data stream, in nanoseconds
+     */
+    public void recordStream(Integer id, String format, SQLiteIterator sqli, MeteredOutputStream out, long nanos) {
+        recordIterator(sqli);
+        add(Stage.CONVERT, nanos - sqli.getQueryNanos() - sqli.getDecodeNanos() - out.getNanos());
+        addStream(id, format, sqli.getRowCount(), 0, nanos);
+    }
+
+    /**
+     * @return Time since the metrics were created, in seconds
+     */
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - started) / 1e9;
+    }
+
+    /**
+     * @return Progress line with rows, throughput, decode failures and, when the expected rows are known, the ETA
+     */
+    public String getProgress() {
+        double seconds = Math.max(getElapsedSeconds(), 1e-3);
+        long done = rows.get();
+        long expected = expectedRows.get();
+        double rate = done / seconds;
+        StringBuilder sb = new StringBuilder("Progress: ").append(done);
+        if (expected > 0) {
+            sb.append(" / ").append(expected).append(" rows (")
+                    .append(String.format("%.1f", Math.min(100.0, 100.0 * done / expected))).append("%)");
+        } else {
+            sb.append(" rows");
+        }
+        sb.append(String.format(", %.0f rows/s, %.2f MB/s, %d decode failures", rate, bytes.get() / 1e6 / seconds, decodeFailures.get()));
+        if (expected > 0 && rate > 0) {
+            long eta = (long) (Math.max(0, expected - done) / rate);
+            sb.append(String.format(", ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Print the progress line periodically on a daemon thread
+     *
+     * @param seconds Interval in seconds
+     */
+    public synchronized void startProgress(int seconds) {
+        if (progress != null || seconds <= 0) {
+            return;
+        }
+        progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "export-progress");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        progress.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(getProgress());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop printing the progress line
+     */
+    public synchronized void stopProgress() {
+        if (progress != null) {
+            progress.shutdownNow();
+            progress = null;
+        }
+    }
+
+    /**
+     * Write a JSON report with the totals, the time spent in each stage and a summary of every data stream
+     *
+     * @param filename Report file
+     * @throws IOException
+     */
+    public void writeReport(String filename) throws IOException {
+        double seconds = Math.max(getElapsedSeconds(), 1e-3);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8));
+        try {
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("seconds").value(seconds);
+            writer.name("rows").value(rows.get());
+            writer.name("bytes").value(bytes.get());
+            writer.name("decode_failures").value(decodeFailures.get());
+            writer.name("rows_per_second").value(rows.get() / seconds);
+            writer.name("mb_per_second").value(bytes.get() / 1e6 / seconds);
+
+            writer.name("stages_ms").beginObject();
+            for (Stage stage : Stage.values()) {
+                writer.name(stage.name().toLowerCase()).value(getNanos(stage) / 1000000);
+            }
+            writer.endObject();
+
+            writer.name("streams").beginArray();
+            synchronized (streams) {
+                for (StreamMetrics stream : streams.values()) {
+                    writer.beginObject();
+                    if (stream.database != null) {
+                        writer.name("database").value(stream.database);
+                    }
+                    writer.name("datasource_id").value(stream.id);
+                    writer.name("format").value(stream.format);
+                    writer.name("rows").value(stream.rows);
+                    writer.name("bytes").value(stream.bytes);
+                    // streams written by a single scan share its time, so they have no time of their own
+                    if (stream.nanos > 0) {
+                        double streamSeconds = stream.nanos / 1e9;
+                        writer.name("seconds").value(streamSeconds);
+                        writer.name("rows_per_second").value(stream.rows / streamSeconds);
+                        writer.name("mb_per_second").value(stream.bytes / 1e6 / streamSeconds);
+                    }
+                    writer.endObject();
+                }
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class StreamMetrics {
+        final String database;
+        final Integer id;
+        final String format;
+        long rows;
+        long bytes;
+        long nanos;
+
+        StreamMetrics(String database, Integer id, String format) {
+            this.database = database;
+            this.id = id;
+            this.format = format;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Multipart body that streams one publish chunk as gzipped JSON.  The rows of the chunk are read from the database,
+ * converted, compressed in parallel blocks and hashed while the request is being sent, so memory use does not depend on the chunk size.
+ * The SHA-1 of the compressed bytes is only known once the body is written; hashBody() returns a part that writes it
+ * and must therefore come after this part in the request.  A chunk is the first rows of the data stream after an _id,
+ * so it is read with a row limit and its last _id is only known once it has been read.  Every call to writeTo reads
+ * the chunk again, so the same body can be sent more than once.  The time spent reading, converting and compressing the chunk is added to the
+ * export metrics on every write; the time spent sending it is left to the uploader.
+ */
+public class GzipJSONChunkBody extends AbstractContentBody {
+
+    private final PooledConnection connection;
+    private final Integer id;
+    private final TimeRange timeRange;
+    private final long afterId;
+    private final int limit;
+    private final CompletableFuture<Long> chunkEnd;
+    private final MetadataCatalog catalog;
+    private final boolean prettyPrint;
+    private final ExportMetrics metrics;
+
+    private long lastId;
+    private String hash;
+    private long rowCount = 0;
+    private long bytes = 0;
+    private long nanos = 0;
+
+    /**
+     * Build a GzipJSONChunkBody for the rows of a data stream after an _id
+     *
+     * @param connection  connection to the database
+     * @param id          Datastream id
+     * @param timeRange   time range of the published samples
+     * @param afterId     _id preceding the chunk
+     * @param limit       number of rows in the chunk, including rows that cannot be decoded
+     * @param catalog     MetadataCatalog with the serialized header of the data stream
+     * @param prettyPrint indent the JSON of the chunk
+     * @param metrics     ExportMetrics to add the stage timings to, or null
+     * @param chunkEnd    completed with the last _id of the chunk when it has been read for the first time, or null
+     */
+    public GzipJSONChunkBody(PooledConnection connection, Integer id, TimeRange timeRange, long afterId, int limit, MetadataCatalog catalog,
+                             boolean prettyPrint, ExportMetrics metrics, CompletableFuture<Long> chunkEnd) {
+        super(ContentType.DEFAULT_BINARY);
+        this.connection = connection;
+        this.id = id;
+        this.timeRange = timeRange;
+        this.afterId = afterId;
+        this.limit = limit;
+        this.chunkEnd = chunkEnd;
+        this.catalog = catalog;
+        this.prettyPrint = prettyPrint;
+        this.metrics = metrics;
+        this.lastId = afterId;
+    }
+
+    @Override
+    public String getFilename() {
+        return "file";
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long start = System.nanoTime();
+        // the multipart stream continues after this part, so finish the gzip stream without closing it
+        MeteredOutputStream sent = new MeteredOutputStream(out, null, id, "publish");
+        ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(new DigestOutputStream(sent, md));
+        JsonWriter writer = catalog.openJSONDataArray(id, gzip, prettyPrint);
+
+        SQLiteIterator sqli = new SQLiteIterator(connection, id, SQLiteIterator.DEFAULT_BUFFER_SIZE, timeRange, afterId, Long.MAX_VALUE, limit);
+        sqli.forEachSample(new DataExport.JSONSampleHandler(DataExport.createJSONDataWriter(writer), null));
+        if (chunkEnd != null) {
+            // the next chunk can be read while this one is finished and sent
+            chunkEnd.complete(sqli.getLastId());
+        }
+        DataExport.createJSONFooter(writer);
+        writer.flush();
+        gzip.finish();
+
+        lastId = sqli.getLastId();
+        hash = DataExport.byteArray2Hex(md.digest());
+        rowCount = sqli.getRowCount();
+        bytes = sent.getCount();
+
+        long elapsed = System.nanoTime() - start - sent.getNanos();
+        nanos += elapsed;
+        if (metrics != null) {
+            metrics.recordIterator(sqli);
+            metrics.add(ExportMetrics.Stage.COMPRESS, gzip.getCompressNanos());
+            metrics.add(ExportMetrics.Stage.CONVERT, elapsed - sqli.getQueryNanos() - sqli.getDecodeNanos());
+        }
+    }
+
+    /**
+     * @return SHA-1 of the compressed chunk, available once the body has been written
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return _id of the last row written, available once the body has been written
+     */
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return number of data samples in the chunk, available once the body has been written
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return size of the compressed chunk, available once the body has been written
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return time spent reading, converting and compressing the chunk over every write, in nanoseconds, excluding the
+     * time spent sending it
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return text part that writes the SHA-1 of this body
+     */
+    public ContentBody hashBody() {
+        return new AbstractContentBody(ContentType.DEFAULT_TEXT) {
+            @Override
+            public String getFilename() {
+                return null;
+            }
+
+            @Override
+            public String getTransferEncoding() {
+                return MIME.ENC_8BIT;
+            }
+
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(hash.getBytes(StandardCharsets.US_ASCII));
+            }
+        };
+    }
+}
@@ -0,0 +1,384 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import org.md2k.datakitapi.datatype.DataType;
+import org.md2k.datakitapi.source.datasource.DataSource;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports several data streams into one wide CSV file aligned on the timestamps of the first stream.  Every sample of
+ * the first stream becomes a line holding its timestamp and values, followed by the values of the matching sample of
+ * each other stream, or empty cells if no sample is within the tolerance.  A match is the closest sample in time
+ * (NEAREST) or the latest sample at or before the timestamp (LOCF, last value carried forward).  Each stream has as many
+ * columns as the values of its first sample; samples with fewer values leave the remaining cells empty and samples
+ * with more are cut to that width, so the columns of the following streams stay aligned.
+ * <p>
+ * The streams are read concurrently in _id order, which DataKit appends in time order, and merged on datetime.  Only
+ * the previous and the next sample of each other stream are held, so memory use does not depend on the length of the
+ * streams.  The first line of the file names the columns.
+ */
+public class JoinExport {
+
+    public static final String NEAREST = "nearest";
+    public static final String LOCF = "locf";
+
+    private static final String SEPARATOR = ", ";
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    private static final int METRICS_INTERVAL = 10000;
+
+    private final ConnectionPool pool;
+    private final List<Integer> ids;
+    private String method = NEAREST;
+    private long tolerance = Long.MAX_VALUE;
+    private TimeRange timeRange = TimeRange.ALL;
+    private boolean gzip = false;
+    private File outputDirectory = null;
+    private MetadataCatalog catalog = null;
+    private ExportMetrics metrics = new ExportMetrics();
+    private long rowCount = 0;
+
+    /**
+     * Build a JoinExport object for data streams of a database
+     *
+     * @param pool ConnectionPool of the database
+     * @param ids  Datastream ids; the first stream sets the timestamps of the lines
+     */
+    public JoinExport(ConnectionPool pool, List<Integer> ids) {
+        if (ids.size() < 2) {
+            throw new IllegalArgumentException("A join needs at least two data streams: " + ids);
+        }
+        this.pool = pool;
+        this.ids = ids;
+    }
+
+    /**
+     * Select how samples of the other streams are matched to the timestamps of the first stream
+     *
+     * @param method NEAREST or LOCF
+     */
+    public void setMethod(String method) {
+        if (!NEAREST.equals(method) && !LOCF.equals(method)) {
+            throw new IllegalArgumentException("Join method must be " + NEAREST + " or " + LOCF + ": " + method);
+        }
+        this.method = method;
+    }
+
+    /**
+     * Limit the time between a line and the samples matched to it
+     *
+     * @param tolerance largest difference of the timestamps in milliseconds
+     */
+    public void setTolerance(long tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Join tolerance must not be negative: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Restrict the joined data samples to a time range
+     *
+     * @param timeRange time range of the samples
+     */
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Compress the CSV file with parallel gzip, adding .gz to its name
+     *
+     * @param gzip enable compressed output file
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Write the CSV file to a directory instead of the working directory
+     *
+     * @param outputDirectory existing directory of the output file
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Share the metadata of the database.  Without one, the metadata is loaded when the export starts.
+     *
+     * @param catalog MetadataCatalog of the same database
+     */
+    public void setCatalog(MetadataCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Add the rows, bytes and stage timings of the export to shared metrics
+     *
+     * @param metrics ExportMetrics of the export
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return number of lines written, not counting the column names
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return name of the output file without the .gz suffix, such as JOIN_3_4_5_DATA.csv
+     */
+    public String getOutputFilename() {
+        StringBuilder filename = new StringBuilder("JOIN");
+        for (Integer id : ids) {
+            filename.append('_').append(id);
+        }
+        filename.append("_DATA.csv");
+        return outputDirectory == null ? filename.toString() : new File(outputDirectory, filename.toString()).getPath();
+    }
+
+    /**
+     * Generate and write the joined data streams to a CSV file
+     *
+     * @return true if the file was written
+     */
+    public boolean writeCSVDataFile() {
+        if (catalog == null) {
+            DataExport de = new DataExport(pool);
+            catalog = de.getCatalog();
+            de.close();
+        }
+        System.out.println("Joining data streams: " + ids);
+        long start = System.nanoTime();
+        ConnectionPool joinPool = pool.withSize(ids.size());
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        MeteredOutputStream out = null;
+        Writer writer = null;
+        long pendingRows = 0;
+        try {
+            for (Integer id : ids) {
+                cursors.add(new Cursor(joinPool.acquire(), id));
+            }
+            out = new MeteredOutputStream(DataExport.openOutputFile(getOutputFilename(), false, gzip), metrics, ids.get(0), "join");
+            writer = new BufferedWriter(new OutputStreamWriter(out, "utf-8"), FILE_BUFFER_SIZE);
+            writeColumnNames(cursors, writer);
+
+            Cursor first = cursors.get(0);
+            StringBuilder line = new StringBuilder(256);
+            while (first.next != null) {
+                DataType sample = first.next;
+                long timestamp = sample.getDateTime();
+                line.setLength(0);
+                line.append(timestamp);
+                first.appendCells(sample, line);
+                for (int i = 1; i < cursors.size(); i++) {
+                    cursors.get(i).appendMatch(timestamp, line);
+                }
+                line.append('\n');
+                writer.append(line);
+                rowCount++;
+                if (++pendingRows == METRICS_INTERVAL) {
+                    metrics.addRows(pendingRows);
+                    pendingRows = 0;
+                }
+                first.advance();
+            }
+            writer.close();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                close(writer);
+            } else if (out != null) {
+                close(out);
+            }
+            metrics.addRows(pendingRows);
+            long queryNanos = 0;
+            for (Cursor cursor : cursors) {
+                metrics.recordIterator(cursor.sqli);
+                queryNanos += cursor.sqli.getQueryNanos() + cursor.sqli.getDecodeNanos();
+                cursor.connection.release();
+            }
+            joinPool.close();
+            long nanos = System.nanoTime() - start;
+            if (out != null) {
+                metrics.add(ExportMetrics.Stage.CONVERT, nanos - queryNanos - out.getNanos());
+            }
+            metrics.addStream(ids.get(0), "join", rowCount, 0, nanos);
+        }
+        return false;
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the header line: timestamp, then a column per value of each stream named after its id and type, with
+     * the index of the value appended for array samples
+     */
+    private void writeColumnNames(List<Cursor> cursors, Writer writer) throws IOException {
+        StringBuilder line = new StringBuilder("timestamp");
+        for (Cursor cursor : cursors) {
+            DataSource ds = catalog.getDataSource(cursor.id);
+            String name = cursor.id + (ds == null || ds.getType() == null ? "" : "_" + ds.getType());
+            for (int i = 0; i < cursor.width; i++) {
+                line.append(SEPARATOR).append(name);
+                if (cursor.width > 1) {
+                    line.append('_').append(i);
+                }
+            }
+        }
+        line.append('\n');
+        writer.append(line);
+    }
+
+    /**
+     * Read position in one data stream: the latest sample at or before the current line and the sample after it
+     */
+    private class Cursor implements SampleHandler {
+
+        private final PooledConnection connection;
+        private final Integer id;
+        private final SQLiteIterator sqli;
+        private DataTypeHandler handler = null;
+        private int width = 0;
+
+        private DataType previous = null;
+        private DataType next = null;
+
+        // CSV cells of the last sample matched, reused while it is matched to consecutive lines
+        private DataType formatted = null;
+        private final StringBuilder cells = new StringBuilder(256);
+
+        Cursor(PooledConnection connection, Integer id) throws IOException {
+            this.connection = connection;
+            this.id = id;
+            sqli = new SQLiteIterator(connection, id, SQLiteIterator.DEFAULT_BUFFER_SIZE, timeRange);
+            advance();
+            if (next != null) {
+                handler = DataTypeHandler.forType(next.getClass());
+                width = handler.toJSON(next).size();
+            }
+        }
+
+        @Override
+        public void handle(DataType sample) {
+            next = sample;
+        }
+
+        /**
+         * Move to the following sample of the stream
+         */
+        void advance() throws IOException {
+            if (!sqli.tryAdvance(this)) {
+                next = null;
+            }
+        }
+
+        /**
+         * Append the values of the sample matched to a timestamp, or empty cells if there is none within the
+         * tolerance.  Timestamps must not decrease from one call to the next.
+         *
+         * @param timestamp timestamp of the line
+         * @param line      destination buffer
+         */
+        void appendMatch(long timestamp, StringBuilder line) throws IOException {
+            while (next != null && next.getDateTime() <= timestamp) {
+                previous = next;
+                advance();
+            }
+            DataType match = null;
+            if (previous != null && timestamp - previous.getDateTime() <= tolerance) {
+                match = previous;
+            }
+            if (NEAREST.equals(method) && next != null && next.getDateTime() - timestamp <= tolerance
+                    && (match == null || next.getDateTime() - timestamp < timestamp - previous.getDateTime())) {
+                match = next;
+            }
+            if (match == null) {
+                for (int i = 0; i < width; i++) {
+                    line.append(SEPARATOR);
+                }
+                return;
+            }
+            appendCells(match, line);
+        }
+
+        /**
+         * Append the values of a sample of the stream as exactly width cells, leaving missing values empty and
+         * dropping the values beyond the width
+         *
+         * @param sample sample of the stream
+         * @param line   destination buffer
+         */
+        void appendCells(DataType sample, StringBuilder line) {
+            if (sample != formatted) {
+                formatted = sample;
+                cells.setLength(0);
+                JsonArray values = null;
+                int count = handler.getValueCount(sample);
+                if (count < 0) {
+                    values = handler.toJSON(sample);
+                    count = values.size();
+                }
+                if (count == width) {
+                    handler.appendCSV(sample, cells);
+                    // drop the timestamp that starts every CSV line
+                    cells.delete(0, Long.toString(sample.getDateTime()).length());
+                } else {
+                    if (values == null) {
+                        values = handler.toJSON(sample);
+                    }
+                    for (int i = 0; i < width; i++) {
+                        cells.append(SEPARATOR);
+                        if (i < values.size()) {
+                            JsonElement value = values.get(i);
+                            cells.append(value.isJsonPrimitive() ? value.getAsString() : value.toString());
+                        }
+                    }
+                }
+            }
+            line.append(cells);
+        }
+    }
+}
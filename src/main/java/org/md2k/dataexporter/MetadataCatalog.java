@@ -0,0 +1,380 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import org.md2k.cerebralcortex.StudyInfo;
+import org.md2k.cerebralcortex.UserInfo;
+import org.md2k.datakitapi.datatype.DataType;
+import org.md2k.datakitapi.source.datasource.DataSource;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadata of a database, loaded once and shared by every stream and chunk that is exported or published from it:
+ * the datasource rows and output filenames, the user and study info, the streams that have data, the number of rows
+ * of each data stream and the serialized JSON header of each stream.  DataSources are decoded on first use.  Whether
+ * a stream has data is probed with a query for its first row, once per stream.  The row counts take one scan of the
+ * data table, so they are only read when first needed, for an ETA or to order and partition streams by size, on a
+ * connection of its own so the catalog outlives the connection it was loaded with.  All methods are safe to call from
+ * several threads.
+ */
+public class MetadataCatalog {
+
+    private static final int SHORT_BUFFER_SIZE = 10;
+
+    private final ConnectionPool pool;
+    private final Kryo kryo = KryoFactory.create();
+
+    private final List<Integer> ids = new ArrayList<Integer>();
+    private final Map<Integer, String> outputFilenames = new HashMap<Integer, String>();
+    private final Map<Integer, byte[]> encodedDataSources = new HashMap<Integer, byte[]>();
+    private final Map<Integer, DataSource> dataSources = new HashMap<Integer, DataSource>();
+    private final Map<String, byte[]> jsonHeaders = new HashMap<String, byte[]>();
+    private final UserInfo userInfo;
+    private final StudyInfo studyInfo;
+    private final Map<Integer, Boolean> streamsWithData = new ConcurrentHashMap<Integer, Boolean>();
+    private volatile Map<Integer, Integer> streamSizes = null;
+
+    /**
+     * Build a MetadataCatalog by reading the datasources table and the user and study info streams.  The connection
+     * is only used by the constructor and may be released afterwards.
+     *
+     * @param connection connection to the database
+     */
+    public MetadataCatalog(PooledConnection connection) {
+        this.pool = connection.getPool();
+        int userStreamID = -1;
+        int studyStreamID = -1;
+        try {
+            ResultSet rs = connection.prepare("Select * from datasources").executeQuery();
+            while (rs.next()) {
+                int id = rs.getInt("ds_id");
+                List<String> parameters = new ArrayList<String>();
+                parameters.add(Integer.toString(id));
+                parameters.add(rs.getString("datasource_id"));
+                parameters.add(rs.getString("datasource_type"));
+                parameters.add(rs.getString("platform_id"));
+                parameters.add(rs.getString("platform_type"));
+                parameters.add(rs.getString("platformapp_id"));
+                parameters.add(rs.getString("platformapp_type"));
+                parameters.add(rs.getString("application_id"));
+                parameters.add(rs.getString("application_type"));
+
+                ids.add(id);
+                outputFilenames.put(id, String.join("_", parameters));
+                encodedDataSources.put(id, rs.getBytes("datasource"));
+                if ("USER_INFO".equals(rs.getString("datasource_type"))) {
+                    userStreamID = id;
+                }
+                if ("STUDY_INFO".equals(rs.getString("datasource_type"))) {
+                    studyStreamID = id;
+                }
+            }
+            rs.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        UserInfo ui = new UserInfo();
+        for (String json : readInfo(connection, userStreamID)) {
+            UserInfo candidate = gson.fromJson(json, UserInfo.class);
+            if (!candidate.uuid.isEmpty()) {
+                ui = candidate;
+                break;
+            }
+        }
+        userInfo = ui;
+
+        StudyInfo si = new StudyInfo();
+        for (String json : readInfo(connection, studyStreamID)) {
+            StudyInfo candidate = gson.fromJson(json, StudyInfo.class);
+            if (!candidate.id.isEmpty()) {
+                si = candidate;
+                break;
+            }
+        }
+        studyInfo = si;
+    }
+
+    /**
+     * Read the JSON values of an info stream
+     *
+     * @param connection connection to the database
+     * @param streamID   Datastream id of the info stream, or -1 if the database has none
+     * @return JSON of every sample in the stream
+     */
+    private static List<String> readInfo(PooledConnection connection, int streamID) {
+        List<String> result = new ArrayList<String>();
+        if (streamID >= 0) {
+            SQLiteIterator sqli = new SQLiteIterator(connection, streamID, SHORT_BUFFER_SIZE);
+            while (sqli.hasNext()) {
+                for (DataType dt : sqli.next()) {
+                    result.add(DataTypeConverter.dataTypeToString(dt).split(",", 2)[1]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return ids of all datasources
+     */
+    public List<Integer> getIDs() {
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * @return UserInfo of the database
+     */
+    public UserInfo getUserInfo() {
+        return userInfo;
+    }
+
+    /**
+     * @return StudyInfo of the database
+     */
+    public StudyInfo getStudyInfo() {
+        return studyInfo;
+    }
+
+    /**
+     * Generate an output filename based on the datastream id
+     *
+     * @param id Datastream id
+     * @return String identifier for a filename
+     */
+    public String getOutputFilename(Integer id) {
+        String filename = outputFilenames.get(id);
+        return filename == null ? "" : filename;
+    }
+
+    /**
+     * Decode a datasource, once per database
+     *
+     * @param id Datasource id to retrieve
+     * @return DataSource object populated from the database
+     */
+    public synchronized DataSource getDataSource(Integer id) {
+        if (!dataSources.containsKey(id)) {
+            byte[] b = encodedDataSources.get(id);
+            dataSources.put(id, b == null ? null : (DataSource) kryo.readClassAndObject(new Input(b)));
+        }
+        return dataSources.get(id);
+    }
+
+    /**
+     * Retrieve the number of rows stored for each datasource id.  This scans the whole data table; callers that only
+     * need to know whether a stream has rows use hasData.  The rows are counted on first use with a connection
+     * opened for the query, since the pool may be exhausted by the caller and the connection the catalog was loaded
+     * with may already be in use elsewhere.
+     *
+     * @return Map of datasource id to row count, for the streams that have data, in id order
+     */
+    public synchronized Map<Integer, Integer> getStreamSizes() {
+        if (streamSizes == null) {
+            Map<Integer, Integer> sizes = new TreeMap<Integer, Integer>();
+            ConnectionPool countPool = pool.withSize(1);
+            try {
+                ResultSet rs = countPool.acquire().prepare("Select datasource_id as ds_id, count(*) as size from data group by datasource_id").executeQuery();
+                while (rs.next()) {
+                    sizes.put(rs.getInt("ds_id"), rs.getInt("size"));
+                }
+                rs.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                countPool.close();
+            }
+            streamSizes = Collections.unmodifiableMap(sizes);
+        }
+        return streamSizes;
+    }
+
+    /**
+     * Check whether a data stream has rows by reading its first row, on an index of datasource_id if the database has
+     * one, once per stream.  The row counts are used instead if they have been read.
+     *
+     * @param connection connection borrowed by the caller
+     * @param id         Datastream id
+     * @return true if the data stream has rows
+     */
+    public boolean hasData(PooledConnection connection, Integer id) {
+        Map<Integer, Integer> sizes = streamSizes;
+        if (sizes != null) {
+            return sizes.containsKey(id);
+        }
+        Boolean result = streamsWithData.get(id);
+        if (result == null) {
+            try {
+                PreparedStatement statement = connection.prepare("Select _id from data where datasource_id = ? limit 1");
+                statement.setInt(1, id);
+                ResultSet rs = statement.executeQuery();
+                result = rs.next();
+                rs.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+            streamsWithData.put(id, result);
+        }
+        return result;
+    }
+
+    /**
+     * Serialize the JSON header of a data stream, everything up to the opening bracket of the data array, once per
+     * stream and indentation
+     *
+     * @param id          Datastream id
+     * @param prettyPrint indent the JSON
+     * @return UTF-8 bytes of the header
+     * @throws IOException
+     */
+    public synchronized byte[] getJSONHeader(Integer id, boolean prettyPrint) throws IOException {
+        String key = id + (prettyPrint ? ":pretty" : ":compact");
+        byte[] header = jsonHeaders.get(key);
+        if (header == null) {
+            StringWriter out = new StringWriter();
+            JsonWriter writer = new JsonWriter(out);
+            if (prettyPrint) {
+                writer.setIndent("  ");
+            }
+            DataExport.createJSONHeader(writer, getDataSource(id), userInfo, studyInfo);
+            writer.flush();
+            header = out.toString().getBytes(StandardCharsets.UTF_8);
+            jsonHeaders.put(key, header);
+        }
+        return header;
+    }
+
+    /**
+     * Write the serialized JSON header of a data stream and open a JsonWriter inside its data array.  The data points
+     * and DataExport.createJSONFooter are written to the returned writer exactly as after DataExport.createJSONHeader.
+     *
+     * @param id          Datastream id
+     * @param out         destination stream
+     * @param prettyPrint indent the JSON
+     * @return JsonWriter positioned inside the data array
+     * @throws IOException
+     */
+    public JsonWriter openJSONDataArray(Integer id, OutputStream out, boolean prettyPrint) throws IOException {
+        out.write(getJSONHeader(id, prettyPrint));
+        return continueJSONDataArray(out, prettyPrint);
+    }
+
+    /**
+     * Open a JsonWriter inside an empty data array without writing the header.  The data points written to it are
+     * those that follow the header, or, with a comma in front, those that follow other data points.
+     *
+     * @param out         destination stream
+     * @param prettyPrint indent the JSON
+     * @return JsonWriter positioned inside the data array
+     * @throws IOException
+     */
+    public static JsonWriter continueJSONDataArray(OutputStream out, boolean prettyPrint) throws IOException {
+        // replay the structure of the header into a discarded writer so the JsonWriter continues where it ended
+        HeaderSkippingWriter skip = new HeaderSkippingWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        JsonWriter writer = new JsonWriter(skip);
+        if (prettyPrint) {
+            writer.setIndent("  ");
+        }
+        writer.beginObject();
+        writer.name("data");
+        writer.beginArray();
+        skip.skipping = false;
+        return writer;
+    }
+
+    /**
+     * Serialize the end of a JSON data file, everything after the last data point
+     *
+     * @param prettyPrint indent the JSON
+     * @param empty       the data array has no data points
+     * @return UTF-8 bytes of the footer
+     * @throws IOException
+     */
+    public static byte[] getJSONFooter(boolean prettyPrint, boolean empty) throws IOException {
+        StringWriter out = new StringWriter();
+        HeaderSkippingWriter skip = new HeaderSkippingWriter(out);
+        JsonWriter writer = new JsonWriter(skip);
+        if (prettyPrint) {
+            writer.setIndent("  ");
+        }
+        writer.beginObject();
+        writer.name("data");
+        writer.beginArray();
+        if (!empty) {
+            writer.nullValue();
+        }
+        skip.skipping = false;
+        DataExport.createJSONFooter(writer);
+        writer.flush();
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class HeaderSkippingWriter extends FilterWriter {
+
+        private boolean skipping = true;
+
+        HeaderSkippingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (!skipping) {
+                super.write(c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (!skipping) {
+                super.write(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (!skipping) {
+                super.write(str, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that counts the bytes written through it and the time spent in the underlying stream.  Writers hand it
+ * buffers of several KB, so timing every call stays cheap.  When it is closed, the bytes, the write time and, for a
+ * ParallelGZIPOutputStream underneath, the compression time are added to the metrics of the data stream.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    private final ExportMetrics metrics;
+    private final Integer id;
+    private final String format;
+
+    private long count = 0;
+    private long nanos = 0;
+    private boolean closed = false;
+
+    /**
+     * Build a MeteredOutputStream
+     *
+     * @param out     underlying output stream
+     * @param metrics metrics to add the output to when closed, or null
+     * @param id      Datastream id
+     * @param format  output format
+     */
+    public MeteredOutputStream(OutputStream out, ExportMetrics metrics, Integer id, String format) {
+        super(out);
+        this.metrics = metrics;
+        this.id = id;
+        this.format = format;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        nanos += System.nanoTime() - start;
+        count++;
+        if (metrics != null) {
+            metrics.addBytes(1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        nanos += System.nanoTime() - start;
+        count += len;
+        if (metrics != null) {
+            metrics.addBytes(len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long start = System.nanoTime();
+        try {
+            out.close();
+        } finally {
+            nanos += System.nanoTime() - start;
+            if (metrics != null) {
+                metrics.recordOutput(id, format, this);
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes written, before compression
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return time spent in the underlying stream, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return time spent compressing the output, in nanoseconds, or 0 if it is not compressed
+     */
+    public long getCompressNanos() {
+        return out instanceof ParallelGZIPOutputStream ? ((ParallelGZIPOutputStream) out).getCompressNanos() : 0;
+    }
+}
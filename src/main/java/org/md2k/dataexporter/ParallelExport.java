@@ -0,0 +1,290 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Exports multiple data streams concurrently.  Each worker thread owns a separate DataExport object, and therefore
+ * its own connection from the pool, while the metadata of the database is loaded once and shared.  Streams are
+ * queued largest-first so the biggest streams start early and do not end up running alone at the end of the export.
+ * A stream with more rows than its share of the threads is cut into contiguous _id ranges that are exported
+ * concurrently into part files and joined in order, see PartitionedStream.  Incremental and resampled exports are not partitioned.
+ */
+public class ParallelExport {
+
+    private static final int MIN_PART_SIZE = 50000;
+
+    private final ConnectionPool pool;
+    private final int threads;
+    private TimeRange timeRange = TimeRange.ALL;
+    private Checkpoint checkpoint = null;
+    private boolean gzip = false;
+    private boolean prettyPrint = false;
+    private long resampleWindow = 0;
+    private File outputDirectory = null;
+    private MetadataCatalog catalog = null;
+    private ExportMetrics metrics = new ExportMetrics();
+
+    private final List<DataExport> exports = Collections.synchronizedList(new ArrayList<DataExport>());
+    private final ThreadLocal<DataExport> workerExport = new ThreadLocal<DataExport>() {
+        @Override
+        protected DataExport initialValue() {
+            DataExport de = new DataExport(pool);
+            de.setTimeRange(timeRange);
+            de.setCheckpoint(checkpoint);
+            de.setGzip(gzip);
+            de.setPrettyPrint(prettyPrint);
+            de.setResampleWindow(resampleWindow);
+            de.setOutputDirectory(outputDirectory);
+            de.setCatalog(catalog);
+            de.setMetrics(metrics);
+            exports.add(de);
+            return de;
+        }
+    };
+
+    /**
+     * Build a ParallelExport object for a database.  The pool should have a connection for every thread.
+     *
+     * @param pool    ConnectionPool of the database
+     * @param threads Number of streams to export concurrently
+     */
+    public ParallelExport(ConnectionPool pool, int threads) {
+        this.pool = pool;
+        this.threads = threads;
+    }
+
+    /**
+     * Restrict the exported data samples to a time range
+     *
+     * @param timeRange time range of the samples
+     */
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Enable incremental export, see DataExport.setCheckpoint
+     *
+     * @param checkpoint checkpoint of the exported rows, shared by all workers
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Compress the CSV and JSON output files with parallel gzip, adding .gz to their names
+     *
+     * @param gzip enable compressed output files
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Indent the JSON output files, see DataExport.setPrettyPrint
+     *
+     * @param prettyPrint enable indented JSON
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Downsample the output files into fixed time windows, see DataExport.setResampleWindow
+     *
+     * @param resampleWindow width of the windows in milliseconds, 0 to write every sample
+     */
+    public void setResampleWindow(long resampleWindow) {
+        this.resampleWindow = resampleWindow;
+    }
+
+    /**
+     * Write the output files to a directory instead of the working directory
+     *
+     * @param outputDirectory existing directory of the output files
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Share the metadata of the database.  Without one, the metadata is loaded when the export starts.
+     *
+     * @param catalog MetadataCatalog of the same database
+     */
+    public void setCatalog(MetadataCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Add the rows, bytes and stage timings of all workers to shared metrics
+     *
+     * @param metrics ExportMetrics of the export
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Export all data streams from the database
+     *
+     * @param csv  enable CSV file output
+     * @param json enable JSON file output
+     */
+    public void export(final boolean csv, final boolean json) {
+        DataExport de = new DataExport(pool);
+        if (catalog != null) {
+            de.setCatalog(catalog);
+        }
+        de.setTimeRange(timeRange);
+        de.setOutputDirectory(outputDirectory);
+        catalog = de.getCatalog();
+        List<Integer> ids = de.getIDs();
+        // counting the rows takes a scan of the data table, so streams are only ordered and partitioned by size
+        // without a time range
+        final Map<Integer, Integer> sizes = timeRange.isAll() ? catalog.getStreamSizes() : Collections.<Integer, Integer>emptyMap();
+
+        long total = 0;
+        for (Integer id : ids) {
+            total += size(sizes, id);
+        }
+        List<PartitionedStream> partitioned = new ArrayList<PartitionedStream>();
+        Set<Integer> partitionedIds = new HashSet<Integer>();
+        for (Integer id : ids) {
+            int parts = getParts(size(sizes, id), total);
+            long[] bounds = parts > 1 ? getPartitionBounds(de, id, parts) : null;
+            if (bounds != null && bounds.length > 2) {
+                if (csv) {
+                    partitioned.add(new PartitionedStream(id, PartitionedStream.CSV, de.getOutputFilename(id) + "_DATA.csv",
+                            bounds, gzip, prettyPrint, catalog));
+                }
+                if (json) {
+                    partitioned.add(new PartitionedStream(id, PartitionedStream.JSON, de.getOutputFilename(id) + ".json",
+                            bounds, gzip, prettyPrint, catalog));
+                }
+                partitionedIds.add(id);
+                System.out.println("Exporting data stream: " + id + " in " + (bounds.length - 1) + " parts");
+            }
+        }
+        de.close();
+
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(size(sizes, b), size(sizes, a));
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            // partitioned streams are among the largest, so their parts go first
+            for (final PartitionedStream stream : partitioned) {
+                for (int i = 0; i < stream.getParts(); i++) {
+                    final int part = i;
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            stream.export(workerExport.get(), part);
+                        }
+                    }));
+                }
+            }
+            for (final Integer id : ids) {
+                if (partitionedIds.contains(id)) {
+                    continue;
+                }
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        System.out.println("Exporting data stream: " + id);
+                        DataExport export = workerExport.get();
+                        if (csv) {
+                            export.writeCSVDataFile(id);
+                        }
+                        if (json) {
+                            export.writeJSONDataFile(id);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            for (DataExport export : exports) {
+                export.close();
+            }
+        }
+    }
+
+    /**
+     * Number of parts to cut a data stream into: one unless it is larger than an even share of the rows per thread,
+     * and never parts smaller than MIN_PART_SIZE rows.  Resampled streams are not cut, since a window could
+     * straddle two parts.
+     *
+     * @param size  rows of the data stream
+     * @param total rows of all data streams
+     * @return number of parts
+     */
+    private int getParts(long size, long total) {
+        if (checkpoint != null || resampleWindow > 0 || threads < 2 || size <= total / threads) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(threads, size / MIN_PART_SIZE));
+    }
+
+    private static long[] getPartitionBounds(DataExport de, Integer id, int parts) {
+        try {
+            return de.getPartitionBounds(id, parts);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static int size(Map<Integer, Integer> sizes, Integer id) {
+        Integer size = sizes.get(id);
+        return size == null ? 0 : size;
+    }
+}
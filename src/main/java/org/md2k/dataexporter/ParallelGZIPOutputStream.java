@@ -0,0 +1,262 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream that compresses blocks of its input on a thread pool, in the manner of pigz.  The input is cut
+ * into fixed size blocks; each block is deflated on its own with the last 32 KB of the previous block as preset
+ * dictionary and ends on a byte boundary with a sync flush, so the compressed blocks can be concatenated into one
+ * deflate stream.  The CRC-32 is computed on the writing thread.  The number of blocks in flight is bounded, which
+ * bounds the memory of the stream.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "gzip");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+    private final AtomicLong compressNanos = new AtomicLong();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private byte[] dictionary = null;
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * Build a ParallelGZIPOutputStream that compresses on a shared pool with one thread per processor
+     *
+     * @param out underlying output stream
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+        this(out, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Build a ParallelGZIPOutputStream that compresses on the shared pool with a smaller number of blocks in flight,
+     * for writers that keep many streams open at a time
+     *
+     * @param out         underlying output stream
+     * @param maxInFlight maximum number of blocks submitted and not yet written
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int maxInFlight) throws IOException {
+        this(out, SHARED_EXECUTOR, maxInFlight);
+    }
+
+    /**
+     * Build a ParallelGZIPOutputStream
+     *
+     * @param out         underlying output stream
+     * @param executor    thread pool that deflates the blocks
+     * @param maxInFlight maximum number of blocks submitted and not yet written
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int maxInFlight) throws IOException {
+        super(out);
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == BLOCK_SIZE) {
+            submit(false);
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submit(false);
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write the blocks submitted so far.  As with GZIPOutputStream, input that does not fill a block yet stays
+     * buffered, so frequent flushes by a Writer do not cut the input into small blocks.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!inFlight.isEmpty()) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the remaining compressed blocks and the gzip trailer without closing the underlying stream
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        submit(true);
+        while (!inFlight.isEmpty()) {
+            writeBlock();
+        }
+        writeInt((int) crc.getValue());
+        writeInt((int) size);
+        out.flush();
+        closed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] dictionary = this.dictionary;
+        crc.update(input, 0, length);
+        size += length;
+
+        while (inFlight.size() >= maxInFlight) {
+            writeBlock();
+        }
+        inFlight.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                long start = System.nanoTime();
+                byte[] compressed = deflate(input, length, dictionary, last);
+                compressNanos.addAndGet(System.nanoTime() - start);
+                return compressed;
+            }
+        }));
+
+        // the dictionary of the next block is the end of this one, which directly precedes it in the input
+        if (length > 0) {
+            int dictionaryLength = Math.min(length, DICTIONARY_SIZE);
+            this.dictionary = new byte[dictionaryLength];
+            System.arraycopy(input, length - dictionaryLength, this.dictionary, 0, dictionaryLength);
+        }
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    /**
+     * @return time the pool spent deflating the blocks written so far, in nanoseconds
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    private static byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(input, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[32 * 1024];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } else {
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, n);
+            } while (n == buffer.length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            out.write(inFlight.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,198 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One output file of a data stream written as contiguous _id ranges in parallel.  Each range is exported into its own
+ * part file; when the last part is done, the parts are joined in _id order into the output file with
+ * FileChannel.transferTo, so their bytes are copied by the operating system rather than read into the JVM.  CSV parts
+ * are concatenated.  JSON parts only hold data points: the join adds the header, a comma between non-empty parts and
+ * the footer, so the file is identical to a sequential export.  Compressed parts are gzip members, and the header,
+ * commas and footer are written as members of their own; gzip readers decompress the joined file to the same
+ * content as a sequential export.
+ */
+public class PartitionedStream {
+
+    public static final String CSV = "csv";
+    public static final String JSON = "json";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final byte[] SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+
+    private final Integer id;
+    private final String format;
+    private final String filename;
+    private final long[] bounds;
+    private final boolean gzip;
+    private final boolean prettyPrint;
+    private final MetadataCatalog catalog;
+
+    private final long[] rows;
+    private final AtomicInteger remaining;
+    private volatile boolean failed = false;
+
+    /**
+     * Build a PartitionedStream for the output file of a data stream
+     *
+     * @param id          Datastream id
+     * @param format      CSV or JSON
+     * @param filename    output file name without the .gz suffix
+     * @param bounds      _id preceding each part followed by the last _id of the last part
+     * @param gzip        the parts and the output file are compressed
+     * @param prettyPrint the JSON is indented
+     * @param catalog     MetadataCatalog with the JSON header of the data stream
+     */
+    public PartitionedStream(Integer id, String format, String filename, long[] bounds, boolean gzip, boolean prettyPrint, MetadataCatalog catalog) {
+        this.id = id;
+        this.format = format;
+        this.filename = filename;
+        this.bounds = bounds;
+        this.gzip = gzip;
+        this.prettyPrint = prettyPrint;
+        this.catalog = catalog;
+        this.rows = new long[bounds.length - 1];
+        this.remaining = new AtomicInteger(rows.length);
+    }
+
+    public int getParts() {
+        return rows.length;
+    }
+
+    /**
+     * Export one part with a DataExport object and join the parts if it was the last one
+     *
+     * @param export DataExport object of the calling thread
+     * @param part   number of the part
+     * @return false if the part or the join failed
+     */
+    public boolean export(DataExport export, int part) {
+        boolean success = true;
+        try {
+            String partFilename = filename + PART_SUFFIX + part;
+            if (CSV.equals(format)) {
+                rows[part] = export.writeCSVDataPart(id, partFilename, bounds[part], bounds[part + 1]);
+            } else {
+                rows[part] = export.writeJSONDataPart(id, partFilename, bounds[part], bounds[part + 1]);
+            }
+        } catch (Exception e) {
+            System.err.println("DataStream ID: " + id + " part " + part);
+            e.printStackTrace();
+            failed = true;
+            success = false;
+        }
+        // the decrement publishes the row count of this part to the thread that joins
+        if (remaining.decrementAndGet() == 0) {
+            success &= join();
+        }
+        return success;
+    }
+
+    /**
+     * Join the part files into the output file and delete them
+     *
+     * @return false if a part failed or the parts could not be joined
+     */
+    private boolean join() {
+        boolean success = !failed;
+        try {
+            if (success) {
+                FileOutputStream out = new FileOutputStream(getPartFile(null));
+                FileChannel channel = out.getChannel();
+                try {
+                    boolean empty = true;
+                    if (JSON.equals(format)) {
+                        write(channel, catalog.getJSONHeader(id, prettyPrint));
+                    }
+                    for (int i = 0; i < rows.length; i++) {
+                        if (JSON.equals(format) && rows[i] > 0 && !empty) {
+                            write(channel, SEPARATOR);
+                        }
+                        empty &= rows[i] == 0;
+                        transfer(getPartFile(i), channel);
+                    }
+                    if (JSON.equals(format)) {
+                        write(channel, MetadataCatalog.getJSONFooter(prettyPrint, empty));
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("DataStream ID: " + id);
+            e.printStackTrace();
+            success = false;
+        } finally {
+            for (int i = 0; i < rows.length; i++) {
+                getPartFile(i).delete();
+            }
+        }
+        return success;
+    }
+
+    /**
+     * @param part number of the part, or null for the output file
+     * @return File of a part or of the output file, with the .gz suffix if compressed
+     */
+    private File getPartFile(Integer part) {
+        return new File(filename + (part == null ? "" : PART_SUFFIX + part) + (gzip ? ".gz" : ""));
+    }
+
+    private static void transfer(File part, FileChannel channel) throws IOException {
+        FileInputStream in = new FileInputStream(part);
+        try {
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, channel);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(FileChannel channel, byte[] bytes) throws IOException {
+        if (gzip) {
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            OutputStream out = new ParallelGZIPOutputStream(member);
+            out.write(bytes);
+            out.close();
+            bytes = member.toByteArray();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -25,32 +25,91 @@ package org.md2k.dataexporter;/*
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.KryoException;
-import com.esotericsoftware.kryo.io.Input;
 import org.md2k.datakitapi.datatype.DataType;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 
+/**
+ * Reads the samples of a data stream in _id order.  next() returns them in batches of up to bufferSize decoded
+ * objects; forEachSample hands them to a SampleHandler one row at a time, so that memory use does not depend on the
+ * buffer size.
+ */
 public class SQLiteIterator implements Iterator<List<DataType>> {
+    /**
+     * Batch size for readers that go through forEachSample, or that only need small batches from next()
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 10000;
+
+    // decoding is timed on one row in DECODE_SAMPLE_RATE, which keeps the timer calls off most rows
+    private static final int DECODE_SAMPLE_RATE = 16;
+    private static final int PROGRESS_ROWS = 10000;
+
     private ResultSet rs;
     private int bufferSize;
-    private Kryo kryo = new Kryo();
+    private SampleDecoder decoder = new SampleDecoder();
+    private long lastId;
+    private long rowCount = 0;
+    private long rowsRead = 0;
+    private long readNanos = 0;
+    private long decodeNanos = 0;
+    private long handleNanos = 0;
+    private ExportMetrics metrics = null;
+
+    public SQLiteIterator(PooledConnection connection, Integer id, int bufferSize) {
+        this(connection, id, bufferSize, TimeRange.ALL);
+    }
+
+    public SQLiteIterator(PooledConnection connection, Integer id, int bufferSize, TimeRange timeRange) {
+        this(connection, id, bufferSize, timeRange, 0);
+    }
+
+    public SQLiteIterator(PooledConnection connection, Integer id, int bufferSize, TimeRange timeRange, long afterId) {
+        this(connection, id, bufferSize, timeRange, afterId, Long.MAX_VALUE);
+    }
 
-    public SQLiteIterator(Statement statement, Integer id, int bufferSize) {
+    public SQLiteIterator(PooledConnection connection, Integer id, int bufferSize, TimeRange timeRange, long afterId, long endId) {
+        this(connection, id, bufferSize, timeRange, afterId, endId, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Build a SQLiteIterator over the rows of a data stream in an _id range
+     *
+     * @param connection connection to the database
+     * @param id         Datastream id
+     * @param bufferSize number of samples returned by next()
+     * @param timeRange  time range of the samples
+     * @param afterId    _id preceding the range
+     * @param endId      last _id of the range, or Long.MAX_VALUE
+     * @param limit      maximum number of rows read, including rows that cannot be decoded, or Integer.MAX_VALUE
+     */
+    public SQLiteIterator(PooledConnection connection, Integer id, int bufferSize, TimeRange timeRange, long afterId, long endId, int limit) {
         this.bufferSize = bufferSize;
+        this.lastId = afterId;
+        String range = "_id > ?" + (endId == Long.MAX_VALUE ? "" : " and _id <= ?");
+        long start = System.nanoTime();
         try {
-            rs = statement.executeQuery("Select _id, datasource_id, datetime, sample from data where datasource_id = " + id);
+            PreparedStatement statement = connection.prepare("Select _id, datasource_id, datetime, sample from data where " + range + " and datasource_id = ?" + timeRange.toSQL()
+                    + (limit == Integer.MAX_VALUE ? "" : " order by _id limit ?"));
+            int index = 1;
+            statement.setLong(index++, afterId);
+            if (endId != Long.MAX_VALUE) {
+                statement.setLong(index++, endId);
+            }
+            statement.setInt(index++, id);
+            index = timeRange.bind(statement, index);
+            if (limit != Integer.MAX_VALUE) {
+                statement.setInt(index, limit);
+            }
+            rs = statement.executeQuery();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        readNanos += System.nanoTime() - start;
     }
 
     @Override
@@ -67,31 +126,149 @@ public class SQLiteIterator implements Iterator<List<DataType>> {
     @Override
     public List<DataType> next() {
         List<DataType> result = new ArrayList<DataType>();
-        byte[] b;
-        Input input;
         DataType dt;
+        long start = System.nanoTime();
         try {
             while (result.size() < bufferSize && rs.next()) {
-                b = rs.getBytes("sample");
-                input = new Input(new ByteArrayInputStream(b));
-                try {
-                    dt = (DataType) kryo.readClassAndObject(input);
+                lastId = rs.getLong("_id");
+                if (rowsRead++ % DECODE_SAMPLE_RATE == 0) {
+                    long decodeStart = System.nanoTime();
+                    dt = decoder.decode(rs);
+                    decodeNanos += (System.nanoTime() - decodeStart) * DECODE_SAMPLE_RATE;
+                } else {
+                    dt = decoder.decode(rs);
+                }
+                if (dt != null) {
                     result.add(dt);
-                } catch (KryoException ke) {
-                    Date date = new Date(rs.getLong("dateTime"));
-                    DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                    format.setTimeZone(TimeZone.getTimeZone("Etc/UTC"));
-
-                    System.err.println("KryoException: (" + rs.getLong("_id") + ", " + rs.getString("datasource_id") + ", " + rs.getLong("dateTime") + ", " + format.format(date) + ")");
-//                    ke.printStackTrace();
+                    rowCount++;
                 }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        readNanos += System.nanoTime() - start;
 
+        return result;
+    }
+
+    /**
+     * Decode the remaining rows one at a time and hand each sample to a handler.  Only the current row is held, so
+     * memory use does not depend on the buffer size or on the length of the data stream.
+     *
+     * @param handler receives the samples in _id order
+     * @return number of samples handled
+     * @throws IOException if the handler fails
+     */
+    public long forEachSample(SampleHandler handler) throws IOException {
+        long count = 0;
+        long pending = 0;
+        long start = System.nanoTime();
+        try {
+            while (rs.next()) {
+                lastId = rs.getLong("_id");
+                boolean sampled = rowsRead++ % DECODE_SAMPLE_RATE == 0;
+                long decodeStart = sampled ? System.nanoTime() : 0;
+                DataType dt = decoder.decode(rs);
+                long handleStart = sampled ? System.nanoTime() : 0;
+                if (dt != null) {
+                    handler.handle(dt);
+                    count++;
+                    if (metrics != null && ++pending == PROGRESS_ROWS) {
+                        metrics.addRows(pending);
+                        pending = 0;
+                    }
+                }
+                if (sampled) {
+                    decodeNanos += (handleStart - decodeStart) * DECODE_SAMPLE_RATE;
+                    handleNanos += (System.nanoTime() - handleStart) * DECODE_SAMPLE_RATE;
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            readNanos += System.nanoTime() - start;
+            rowCount += count;
+            if (metrics != null) {
+                metrics.addRows(pending);
+            }
+        }
+        return count;
+    }
 
+    /**
+     * Decode rows until one has a valid sample and hand it to a handler
+     *
+     * @param handler receives the sample
+     * @return false if there are no more samples
+     * @throws IOException if the handler fails
+     */
+    public boolean tryAdvance(SampleHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            while (rs.next()) {
+                lastId = rs.getLong("_id");
+                boolean sampled = rowsRead++ % DECODE_SAMPLE_RATE == 0;
+                long decodeStart = sampled ? System.nanoTime() : 0;
+                DataType dt = decoder.decode(rs);
+                if (sampled) {
+                    decodeNanos += (System.nanoTime() - decodeStart) * DECODE_SAMPLE_RATE;
+                }
+                if (dt != null) {
+                    rowCount++;
+                    readNanos += System.nanoTime() - start;
+                    handler.handle(dt);
+                    return true;
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        readNanos += System.nanoTime() - start;
+        return false;
+    }
 
-        return result;
+    /**
+     * Add the samples handled by forEachSample to the progress of an export
+     *
+     * @param metrics ExportMetrics of the export
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return _id of the last row read, including rows that could not be decoded
+     */
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return number of data samples returned so far
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return number of rows whose sample could not be decoded
+     */
+    public long getFailureCount() {
+        return decoder.getFailureCount();
+    }
+
+    /**
+     * @return time spent running the query and stepping through its rows, in nanoseconds, excluding the time spent in
+     * the handler of forEachSample
+     */
+    public long getQueryNanos() {
+        return Math.max(0, readNanos - decodeNanos - handleNanos);
+    }
+
+    /**
+     * @return time spent decoding samples, in nanoseconds, estimated from a sample of the rows
+     */
+    public long getDecodeNanos() {
+        return Math.min(readNanos, decodeNanos);
     }
 }
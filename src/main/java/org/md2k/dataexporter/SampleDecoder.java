@@ -0,0 +1,85 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import org.md2k.datakitapi.datatype.DataType;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Decodes the Kryo encoded samples of data table rows.  A single Kryo Input is reset onto each row's blob, so
+ * decoding a row allocates only the blob returned by the driver and the resulting DataType object.  Not thread safe;
+ * every reader needs its own SampleDecoder.
+ */
+public class SampleDecoder {
+
+    private final Kryo kryo = KryoFactory.create();
+    private final Input input = new Input();
+    private DateFormat format = null;
+    private long failureCount = 0;
+
+    /**
+     * Decode the sample of the current row of a data query
+     *
+     * @param rs ResultSet positioned on a row of the data table
+     * @return decoded DataType object or null if the sample could not be decoded
+     * @throws SQLException
+     */
+    public DataType decode(ResultSet rs) throws SQLException {
+        input.setBuffer(rs.getBytes("sample"));
+        try {
+            return (DataType) kryo.readClassAndObject(input);
+        } catch (KryoException ke) {
+            failureCount++;
+            if (format == null) {
+                format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+                format.setTimeZone(TimeZone.getTimeZone("Etc/UTC"));
+            }
+            Date date = new Date(rs.getLong("dateTime"));
+
+            System.err.println("KryoException: (" + rs.getLong("_id") + ", " + rs.getString("datasource_id") + ", " + rs.getLong("dateTime") + ", " + format.format(date) + ")");
+//            ke.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return number of samples that could not be decoded
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+}
@@ -0,0 +1,416 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.datakitapi.datatype.DataType;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+
+/**
+ * Exports all data streams to CSV files with a single pass over the data table.  Rows are read in rowid order,
+ * decoded once, and formatted into an in-memory buffer per data stream; a stream gets its buffer, and later its
+ * file, with its first row in the scan.  The buffers share a budget of BUFFER_BUDGET chars: when it is exceeded, the
+ * largest buffer is written out, so every write to disk is a large one however the streams are interleaved.  Plain
+ * files are appended to directly.  Compressed files are written once, after the scan, by one gzip stream per file:
+ * buffers written out during the scan go to a plain part file, which is then compressed with the rest of the stream.
+ */
+public class SingleScanExport {
+
+    // chars of CSV held in memory over all data streams, 32 MiB of heap
+    private static final int BUFFER_BUDGET = 16 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final int PROGRESS_INTERVAL = 1000000;
+    // reading and decoding are timed on one row in TIMING_SAMPLE_RATE
+    private static final int TIMING_SAMPLE_RATE = 16;
+    private static final int METRICS_INTERVAL = 10000;
+
+    private final ConnectionPool pool;
+    private final SampleDecoder decoder = new SampleDecoder();
+    private final CSVFormatter formatter = new CSVFormatter();
+    private TimeRange timeRange = TimeRange.ALL;
+    private Checkpoint checkpoint = null;
+    private boolean gzip = false;
+    private File outputDirectory = null;
+    private long rowCount = 0;
+    private MetadataCatalog catalog = null;
+    private ExportMetrics metrics = new ExportMetrics();
+    private long writeNanos = 0;
+
+    private final Map<Integer, String> outputFilenames = new HashMap<Integer, String>();
+    private final Map<Integer, Long> watermarks = new HashMap<Integer, Long>();
+    private final Map<Integer, Long> streamRows = new HashMap<Integer, Long>();
+    private final Map<Integer, CharArrayWriter> buffers = new HashMap<Integer, CharArrayWriter>();
+    // streams with a buffer already written to their output file, or to their part file if compressed
+    private final Set<Integer> spilled = new HashSet<Integer>();
+    private long buffered = 0;
+
+    /**
+     * Build a SingleScanExport object for a database
+     *
+     * @param pool ConnectionPool of the database
+     */
+    public SingleScanExport(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Restrict the exported data samples to a time range
+     *
+     * @param timeRange time range of the samples
+     */
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Enable incremental export.  The scan starts after the lowest watermark of all data streams, rows at or below
+     * the watermark of their own stream are skipped, and the output is appended to the existing files.
+     *
+     * @param checkpoint checkpoint of the exported rows
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Compress the CSV files with parallel gzip, adding .gz to their names
+     *
+     * @param gzip enable compressed output files
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Write the CSV files to a directory instead of the working directory
+     *
+     * @param outputDirectory existing directory of the output files
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Share the metadata of the database.  Without one, the metadata is loaded when the export starts.
+     *
+     * @param catalog MetadataCatalog of the same database
+     */
+    public void setCatalog(MetadataCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Add the rows, bytes and stage timings of the export to shared metrics
+     *
+     * @param metrics ExportMetrics of the export
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return number of data samples written to CSV files
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Generate and write every data stream to a CSV file with one scan of the data table.  The output is identical
+     * to calling DataExport.writeCSVDataFile for each stream.
+     *
+     * @return true if the whole table was scanned and every file written
+     */
+    public boolean writeCSVDataFiles() {
+        DataExport de = new DataExport(pool);
+        if (catalog != null) {
+            de.setCatalog(catalog);
+        }
+        de.setOutputDirectory(outputDirectory);
+        for (Integer id : de.getIDs()) {
+            outputFilenames.put(id, de.getOutputFilename(id));
+        }
+        de.close();
+
+        long start = Long.MAX_VALUE;
+        for (Integer id : outputFilenames.keySet()) {
+            long watermark = 0;
+            if (checkpoint != null && checkpoint.contains(Checkpoint.CSV, id)) {
+                watermark = checkpoint.getWatermark(Checkpoint.CSV, id);
+                watermarks.put(id, watermark);
+            }
+            start = Math.min(start, watermark);
+        }
+        if (start == Long.MAX_VALUE) {
+            start = 0;
+        }
+
+        PooledConnection connection = null;
+        long count = 0;
+        long lastId = start;
+        boolean complete = false;
+        long scanStart = System.nanoTime();
+        long queryNanos = 0;
+        long decodeNanos = 0;
+        long pendingRows = 0;
+        try {
+            connection = pool.acquire();
+            PreparedStatement statement = connection.prepare("Select _id, datasource_id, datetime, sample from data where _id > ?" + timeRange.toSQL() + " order by _id");
+            statement.setLong(1, start);
+            timeRange.bind(statement, 2);
+            ResultSet rs = statement.executeQuery();
+            queryNanos += System.nanoTime() - scanStart;
+            while (true) {
+                boolean sampled = count % TIMING_SAMPLE_RATE == 0;
+                long t = sampled ? System.nanoTime() : 0;
+                if (!rs.next()) {
+                    break;
+                }
+                lastId = rs.getLong("_id");
+                int id = rs.getInt("datasource_id");
+                if (sampled) {
+                    queryNanos += (System.nanoTime() - t) * TIMING_SAMPLE_RATE;
+                }
+                Long watermark = watermarks.get(id);
+                CharArrayWriter buffer = watermark != null && lastId <= watermark ? null : getBuffer(id);
+                if (buffer != null) {
+                    if (sampled) {
+                        t = System.nanoTime();
+                    }
+                    DataType dt = decoder.decode(rs);
+                    if (sampled) {
+                        decodeNanos += (System.nanoTime() - t) * TIMING_SAMPLE_RATE;
+                    }
+                    if (dt != null) {
+                        int size = buffer.size();
+                        formatter.write(dt, buffer);
+                        buffered += buffer.size() - size;
+                        if (buffered > BUFFER_BUDGET) {
+                            spillLargest();
+                        }
+                        rowCount++;
+                        Long rows = streamRows.get(id);
+                        streamRows.put(id, rows == null ? 1 : rows + 1);
+                        if (++pendingRows == METRICS_INTERVAL) {
+                            metrics.addRows(pendingRows);
+                            pendingRows = 0;
+                        }
+                    }
+                }
+                if (++count % PROGRESS_INTERVAL == 0) {
+                    System.out.println("Rows: " + count);
+                }
+            }
+            System.out.println("Rows: " + count);
+            // like writeCSVDataFile, a file already exported is reopened even without new rows
+            for (Integer id : watermarks.keySet()) {
+                getBuffer(id);
+            }
+            complete = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (connection != null) {
+                connection.release();
+            }
+        }
+
+        try {
+            for (Map.Entry<Integer, CharArrayWriter> entry : buffers.entrySet()) {
+                finish(entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            complete = false;
+        } finally {
+            if (gzip) {
+                for (Integer id : spilled) {
+                    getPartFile(id).delete();
+                }
+            }
+            buffers.clear();
+            recordMetrics(System.nanoTime() - scanStart, queryNanos, decodeNanos, pendingRows);
+        }
+
+        if (complete && checkpoint != null) {
+            for (Integer id : outputFilenames.keySet()) {
+                Long watermark = watermarks.get(id);
+                if (watermark == null || watermark < lastId) {
+                    checkpoint.update(Checkpoint.CSV, id, lastId, getOutputFile(id));
+                }
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Add the scan to the metrics.  Reading and decoding are estimated from the sampled rows, and the time that is not
+     * accounted for by them and the output files is counted as conversion.
+     */
+    private void recordMetrics(long nanos, long queryNanos, long decodeNanos, long pendingRows) {
+        queryNanos = Math.min(queryNanos, nanos);
+        decodeNanos = Math.min(decodeNanos, nanos - queryNanos);
+        metrics.addRows(pendingRows);
+        metrics.addDecodeFailures(decoder.getFailureCount());
+        metrics.add(ExportMetrics.Stage.QUERY, queryNanos);
+        metrics.add(ExportMetrics.Stage.DECODE, decodeNanos);
+        metrics.add(ExportMetrics.Stage.CONVERT, nanos - queryNanos - decodeNanos - writeNanos);
+        for (Map.Entry<Integer, Long> entry : streamRows.entrySet()) {
+            metrics.addStream(entry.getKey(), "csv", entry.getValue(), 0, 0);
+        }
+    }
+
+    /**
+     * Retrieve the buffer of a datastream, starting its export if needed
+     *
+     * @param id Datastream id
+     * @return buffer of the datastream or null if the id has no datasource entry
+     * @throws IOException
+     */
+    private CharArrayWriter getBuffer(Integer id) throws IOException {
+        CharArrayWriter buffer = buffers.get(id);
+        if (buffer == null) {
+            if (!outputFilenames.containsKey(id)) {
+                return null;
+            }
+            System.out.println("Exporting data stream: " + id);
+            if (watermarks.containsKey(id)) {
+                checkpoint.truncate(Checkpoint.CSV, id, getOutputFile(id));
+            }
+            buffer = new CharArrayWriter();
+            buffers.put(id, buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Write out the largest buffer, replacing it with an empty one so that its memory is released
+     *
+     * @throws IOException
+     */
+    private void spillLargest() throws IOException {
+        Integer largest = null;
+        int size = -1;
+        for (Map.Entry<Integer, CharArrayWriter> entry : buffers.entrySet()) {
+            if (entry.getValue().size() > size) {
+                largest = entry.getKey();
+                size = entry.getValue().size();
+            }
+        }
+        spill(largest, buffers.get(largest));
+        buffers.put(largest, new CharArrayWriter());
+        buffered -= size;
+    }
+
+    /**
+     * Append a buffer to the output file of a plain datastream, or to the part file of a compressed one.  The first
+     * write creates the file, unless the datastream continues a checkpoint.
+     *
+     * @param id     Datastream id
+     * @param buffer CSV of the datastream
+     * @throws IOException
+     */
+    private void spill(Integer id, CharArrayWriter buffer) throws IOException {
+        boolean append = !spilled.add(id) || (!gzip && watermarks.containsKey(id));
+        MeteredOutputStream out = open(id, gzip ? getPartFile(id) : getOutputFile(id), append, false);
+        Writer writer = new OutputStreamWriter(out, "utf-8");
+        try {
+            buffer.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the rest of a datastream.  A compressed file is written in one gzip stream from its part file, if any,
+     * followed by the buffer.
+     *
+     * @param id     Datastream id
+     * @param buffer CSV of the datastream not written yet
+     * @throws IOException
+     */
+    private void finish(Integer id, CharArrayWriter buffer) throws IOException {
+        if (!gzip) {
+            if (buffer.size() > 0 || !spilled.contains(id)) {
+                spill(id, buffer);
+            }
+            return;
+        }
+        MeteredOutputStream out = open(id, getOutputFile(id), watermarks.containsKey(id), true);
+        Writer writer = new OutputStreamWriter(out, "utf-8");
+        try {
+            if (spilled.contains(id)) {
+                Files.copy(getPartFile(id).toPath(), out);
+            }
+            buffer.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Open a file for CSV output.  The bytes of an output file are added to the metrics of the datastream, the write
+     * time of every file to the write stage.
+     *
+     * @param id       Datastream id
+     * @param file     output or part file
+     * @param append   append to an existing file
+     * @param compress compress the file with parallel gzip
+     * @return MeteredOutputStream of the file
+     * @throws IOException
+     */
+    private MeteredOutputStream open(Integer id, File file, boolean append, boolean compress) throws IOException {
+        OutputStream out = new FileOutputStream(file, append);
+        if (compress) {
+            out = new ParallelGZIPOutputStream(out);
+        }
+        final boolean output = compress || !gzip;
+        return new MeteredOutputStream(out, output ? metrics : null, id, "csv") {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                writeNanos += getNanos();
+                if (!output) {
+                    metrics.add(ExportMetrics.Stage.WRITE, getNanos());
+                }
+            }
+        };
+    }
+
+    private File getOutputFile(Integer id) {
+        return new File(outputFilenames.get(id) + (gzip ? "_DATA.csv.gz" : "_DATA.csv"));
+    }
+
+    private File getPartFile(Integer id) {
+        return new File(outputFilenames.get(id) + "_DATA.csv" + PART_SUFFIX);
+    }
+}
@@ -0,0 +1,196 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Half-open range [from, to) of sample timestamps in milliseconds since the epoch.  The range is pushed down into the
+ * data queries as a datetime predicate whose bounds are bound as statement parameters.
+ */
+public class TimeRange {
+
+    public static final TimeRange ALL = new TimeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private static final String[] ISO_8601_FORMATS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXXX",
+            "yyyy-MM-dd'T'HH:mm:ssXXX",
+            "yyyy-MM-dd'T'HH:mmXXX",
+            "yyyy-MM-dd'T'HH:mm:ss.SSS",
+            "yyyy-MM-dd'T'HH:mm:ss",
+            "yyyy-MM-dd'T'HH:mm",
+            "yyyy-MM-dd"
+    };
+
+    private final long from;
+    private final long to;
+
+    /**
+     * Build a TimeRange
+     *
+     * @param from first timestamp included in the range
+     * @param to   first timestamp after the range
+     */
+    public TimeRange(long from, long to) {
+        if (from > to) {
+            throw new IllegalArgumentException("Range start " + from + " is after its end " + to);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Build a TimeRange from command line values, either of which may be null for an open end
+     *
+     * @param from epoch milliseconds or ISO-8601 time of the start of the range
+     * @param to   epoch milliseconds or ISO-8601 time of the end of the range
+     * @return TimeRange
+     */
+    public static TimeRange parse(String from, String to) {
+        return new TimeRange(from == null ? Long.MIN_VALUE : parseTime(from), to == null ? Long.MAX_VALUE : parseTime(to));
+    }
+
+    /**
+     * Parse a time given as epoch milliseconds or as ISO-8601 (UTC unless an offset is given)
+     *
+     * @param value time string
+     * @return epoch milliseconds
+     */
+    public static long parseTime(String value) {
+        String time = value.trim();
+        if (time.matches("-?\\d+")) {
+            return Long.parseLong(time);
+        }
+        for (String pattern : ISO_8601_FORMATS) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setTimeZone(TimeZone.getTimeZone("Etc/UTC"));
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(time, position);
+            if (date != null && position.getIndex() == time.length()) {
+                return date.getTime();
+            }
+        }
+        throw new IllegalArgumentException("Not an epoch millisecond or ISO-8601 time: " + value);
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    /**
+     * @return true if the range does not restrict the timestamps
+     */
+    public boolean isAll() {
+        return from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+    }
+
+    /**
+     * @return SQL predicate on the datetime column to append to a where clause, empty for an unrestricted range.  Its
+     * parameters are set with bind.
+     */
+    public String toSQL() {
+        return isAll() ? "" : " and " + predicate();
+    }
+
+    /**
+     * @return SQL where clause on the datetime column, empty for an unrestricted range.  Its parameters are set with
+     * bind.
+     */
+    public String toWhereSQL() {
+        return isAll() ? "" : " where " + predicate();
+    }
+
+    /**
+     * Fraction of a span of timestamps covered by this range
+     *
+     * @param first first timestamp of the span
+     * @param last  last timestamp of the span
+     * @return value between 0 and 1
+     */
+    public double coverage(long first, long last) {
+        if (last <= first) {
+            return from <= first && first < to ? 1.0 : 0.0;
+        }
+        double start = Math.max(from, first);
+        double end = Math.min(to, last);
+        return Math.max(0.0, end - start) / (last - first);
+    }
+
+    /**
+     * Set the parameters of the predicate returned by toSQL or toWhereSQL
+     *
+     * @param statement statement of the query
+     * @param index     index of the first parameter of the predicate
+     * @return index of the parameter after the predicate
+     * @throws SQLException
+     */
+    public int bind(PreparedStatement statement, int index) throws SQLException {
+        if (from != Long.MIN_VALUE) {
+            statement.setLong(index++, from);
+        }
+        if (to != Long.MAX_VALUE) {
+            statement.setLong(index++, to);
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + (from == Long.MIN_VALUE ? "" : from) + ", " + (to == Long.MAX_VALUE ? "" : to) + ")";
+    }
+
+    private String predicate() {
+        List<String> predicates = new ArrayList<String>();
+        if (from != Long.MIN_VALUE) {
+            predicates.add("datetime >= ?");
+        }
+        if (to != Long.MAX_VALUE) {
+            predicates.add("datetime < ?");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String p : predicates) {
+            if (sb.length() > 0) {
+                sb.append(" and ");
+            }
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Temporary index on data(datasource_id, datetime) used to answer selective time-range exports without scanning
+ * every row of a stream.  DataKit databases only index the _id column, so the index is created in the source database
+ * file itself, which is modified and needs to be writable.  It is dropped again by close(), or by a shutdown hook if
+ * the export is interrupted.  An index of the same name left by a run that was killed outright is taken over and
+ * dropped as well.  Dropping the index frees its pages for reuse but does not shrink the file.
+ */
+public class TimeRangeIndex {
+
+    private static final String INDEX_NAME = "dataexporter_datasource_datetime";
+    private static final double SELECTIVE_COVERAGE = 0.25;
+
+    private final String filename;
+    private boolean created = false;
+    private Thread shutdownHook = null;
+
+    /**
+     * Build a TimeRangeIndex object for a sqlite database file
+     *
+     * @param filename SQLite database file
+     */
+    public TimeRangeIndex(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Create the index if the time range covers only a small part of the recorded data.  The recorded span is
+     * estimated from the timestamps of the first and last rows, which are appended in time order by DataKit.
+     *
+     * @param timeRange time range of the export
+     * @return true if the index was created
+     */
+    public synchronized boolean createIfSelective(TimeRange timeRange) {
+        if (timeRange.isAll()) {
+            return false;
+        }
+        if (!isWritable()) {
+            System.err.println("Not creating index, " + filename + " is not writable");
+            return false;
+        }
+        Connection connection = null;
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + filename, new SQLiteConfig().toProperties());
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("Select (Select datetime from data order by _id asc limit 1) as first, (Select datetime from data order by _id desc limit 1) as last");
+            if (!rs.next()) {
+                return false;
+            }
+            double coverage = timeRange.coverage(rs.getLong("first"), rs.getLong("last"));
+            rs.close();
+            if (coverage >= SELECTIVE_COVERAGE) {
+                return false;
+            }
+            rs = statement.executeQuery("Select name from sqlite_master where type = 'index' and name = '" + INDEX_NAME + "'");
+            boolean exists = rs.next();
+            rs.close();
+            if (exists) {
+                System.out.println("Taking over index " + INDEX_NAME + " left by an interrupted export");
+            } else {
+                System.out.println("Creating index " + INDEX_NAME);
+                statement.execute("Create index " + INDEX_NAME + " on data (datasource_id, datetime)");
+            }
+            created = true;
+            shutdownHook = new Thread() {
+                @Override
+                public void run() {
+                    close();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } catch (SQLException e) {
+            System.err.println("Unable to create index: " + e.getMessage());
+        } finally {
+            close(connection);
+        }
+        return created;
+    }
+
+    /**
+     * The index is written to the database file, and SQLite writes its rollback journal next to it
+     *
+     * @return true if the database file and its directory are writable
+     */
+    public boolean isWritable() {
+        File file = new File(filename).getAbsoluteFile();
+        return file.canWrite() && file.getParentFile() != null && file.getParentFile().canWrite();
+    }
+
+    /**
+     * Drop the index if it was created or taken over by this object
+     */
+    public synchronized void close() {
+        if (!created) {
+            return;
+        }
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down and runs the hook
+            }
+        }
+        shutdownHook = null;
+        Connection connection = null;
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + filename, new SQLiteConfig().toProperties());
+            connection.createStatement().execute("Drop index if exists " + INDEX_NAME);
+            created = false;
+        } catch (SQLException e) {
+            System.err.println("Unable to drop index: " + e.getMessage());
+        } finally {
+            close(connection);
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of published chunks.  Every upload attempt is recorded as one tab separated line
+ * <pre>
+ * datastream id, first _id (exclusive), last _id (inclusive), SHA-1 of the chunk, HTTP status, server response
+ * </pre>
+ * and synced to disk before the next chunk is sent.  A chunk is acknowledged when the server answered with a 2xx
+ * status; a restarted publish resumes each data stream after its last contiguously acknowledged chunk and skips the
+ * acknowledged chunks after it.  A chunk that
+ * was sent but got no response is recorded with status 0 and may have been accepted; its SHA-1 identifies it to the
+ * server when it is sent again.
+ */
+public class UploadJournal {
+
+    private static final int MAX_RESPONSE_LENGTH = 256;
+
+    private final Map<Integer, Map<Long, Long>> acknowledged = new HashMap<Integer, Map<Long, Long>>();
+    private final FileOutputStream out;
+    private final Writer writer;
+
+    /**
+     * Build an UploadJournal object, loading the chunks acknowledged by previous runs
+     *
+     * @param filename journal file, created if it does not exist
+     * @throws IOException
+     */
+    public UploadJournal(String filename) throws IOException {
+        File file = new File(filename);
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    load(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        out = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    private void load(String line) {
+        String[] fields = line.split("\t", 6);
+        if (fields.length < 5 || line.startsWith("#")) {
+            return;
+        }
+        try {
+            if (isAcknowledged(Integer.parseInt(fields[4]))) {
+                acknowledge(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            }
+        } catch (NumberFormatException e) {
+            // ignore a line truncated by a crash while it was written
+        }
+    }
+
+    private void acknowledge(Integer id, long afterId, long lastId) {
+        Map<Long, Long> chunks = acknowledged.get(id);
+        if (chunks == null) {
+            chunks = new HashMap<Long, Long>();
+            acknowledged.put(id, chunks);
+        }
+        chunks.put(afterId, lastId);
+    }
+
+    /**
+     * @param status HTTP status code
+     * @return true if the status acknowledges an upload
+     */
+    public static boolean isAcknowledged(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * Retrieve the end of the acknowledged chunks of a data stream, following the chunks from the start of the stream
+     *
+     * @param id Datastream id
+     * @return last _id of the contiguous acknowledged chunks, or 0 if no chunk was acknowledged
+     */
+    public synchronized long getAcknowledged(Integer id) {
+        long lastId = 0;
+        Map<Long, Long> chunks = acknowledged.get(id);
+        if (chunks != null) {
+            Long next;
+            while ((next = chunks.get(lastId)) != null && next > lastId) {
+                lastId = next;
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Retrieve the end of an acknowledged chunk of a data stream.  With several upload threads, chunks are
+     * acknowledged out of order, so chunks after a gap in the contiguous chain may already be acknowledged.
+     *
+     * @param id      Datastream id
+     * @param afterId _id preceding the first row of the chunk
+     * @return last _id of the acknowledged chunk starting after afterId, or -1 if there is none
+     */
+    public synchronized long getAcknowledged(Integer id, long afterId) {
+        Map<Long, Long> chunks = acknowledged.get(id);
+        Long lastId = chunks == null ? null : chunks.get(afterId);
+        return lastId == null ? -1 : lastId;
+    }
+
+    /**
+     * Record an upload attempt and sync the journal to disk
+     *
+     * @param id       Datastream id
+     * @param afterId  _id preceding the first row of the chunk
+     * @param lastId   _id of the last row of the chunk
+     * @param hash     SHA-1 of the uploaded chunk
+     * @param status   HTTP status code, or 0 if no response was received
+     * @param response server response or error message
+     */
+    public synchronized void record(Integer id, long afterId, long lastId, String hash, int status, String response) {
+        if (isAcknowledged(status)) {
+            acknowledge(id, afterId, lastId);
+        }
+        String text = response == null ? "" : response.replaceAll("\\s+", " ").trim();
+        if (text.length() > MAX_RESPONSE_LENGTH) {
+            text = text.substring(0, MAX_RESPONSE_LENGTH);
+        }
+        try {
+            writer.write(id + "\t" + afterId + "\t" + lastId + "\t" + hash + "\t" + status + "\t" + text + "\n");
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("Unable to write upload journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the journal file
+     */
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+public class UploadResponse {
+    String hash;
+    int status;
+    String message;
+    long retryAfter;
+    boolean sent;
+
+    public UploadResponse(String hash, int status, String message) {
+        this(hash, status, message, 0);
+    }
+
+    public UploadResponse(String hash, int status, String message, long retryAfter) {
+        this.hash = hash;
+        this.status = status;
+        this.message = message;
+        this.retryAfter = retryAfter;
+    }
+
+    public boolean isAcknowledged() {
+        return UploadJournal.isAcknowledged(status);
+    }
+
+    /**
+     * @return true if the request was sent in full but failed without a response, so the webservice may or may not
+     * have accepted it
+     */
+    public boolean isOutcomeUnknown() {
+        return status == 0 && sent;
+    }
+
+    /**
+     * @return true if the request failed before it was sent in full, timed out waiting for the body (408), was
+     * throttled (429) or hit a server or gateway error (5xx).  A chunk sent again after a 5xx carries the same SHA-1,
+     * which identifies it to the webservice.
+     */
+    public boolean isRetryable() {
+        return (status == 0 && !sent) || status == 408 || status == 429 || status >= 500;
+    }
+}
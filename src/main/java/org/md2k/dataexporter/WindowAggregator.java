@@ -0,0 +1,165 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.md2k.datakitapi.datatype.DataType;
+import org.md2k.datakitapi.datatype.DataTypeDoubleArray;
+
+import java.io.IOException;
+
+/**
+ * Downsamples a data stream into fixed time windows while it is read.  Samples are aggregated in the order they
+ * arrive and a window is handed to the next handler as soon as a sample falls outside of it, so only the running
+ * state of the current window is kept.  Every window becomes one DataTypeDoubleArray sample, timestamped with the
+ * start of the window, whose values are the number of samples followed by the mean, minimum, maximum and standard
+ * deviation of each element of the samples.  Means and variances are accumulated with Welford's method.  Samples
+ * that are not numeric only contribute to the count.
+ */
+public class WindowAggregator implements SampleHandler {
+
+    /**
+     * Number of aggregates written for each element of the samples
+     */
+    public static final int AGGREGATES = 4;
+
+    private static final String[] UNITS = {"ms", "s", "m", "h", "d"};
+    private static final long[] UNIT_MILLISECONDS = {1, 1000, 60 * 1000, 60 * 60 * 1000, 24 * 60 * 60 * 1000};
+
+    private final long window;
+    private final SampleHandler next;
+
+    private Class<? extends DataType> type = null;
+    private DataTypeHandler handler = null;
+
+    private long windowStart = 0;
+    private long count = 0;
+    private int width = 0;
+    private double[] mean = new double[0];
+    private double[] m2 = new double[0];
+    private double[] min = new double[0];
+    private double[] max = new double[0];
+
+    /**
+     * Build a WindowAggregator
+     *
+     * @param window width of the windows in milliseconds, windows start at multiples of it
+     * @param next   handler of the aggregated samples
+     */
+    public WindowAggregator(long window, SampleHandler next) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Resample window must be positive: " + window);
+        }
+        this.window = window;
+        this.next = next;
+    }
+
+    /**
+     * Parse a window width given as milliseconds or as a number followed by ms, s, m, h or d
+     *
+     * @param value window string such as 250ms, 30s or 5m
+     * @return window width in milliseconds
+     */
+    public static long parseWindow(String value) {
+        String window = value.trim().toLowerCase();
+        long unit = 1;
+        for (int i = 0; i < UNITS.length; i++) {
+            if (window.endsWith(UNITS[i]) && window.substring(0, window.length() - UNITS[i].length()).matches("\\d+")) {
+                window = window.substring(0, window.length() - UNITS[i].length());
+                unit = UNIT_MILLISECONDS[i];
+                break;
+            }
+        }
+        if (!window.matches("\\d+") || Long.parseLong(window) == 0) {
+            throw new IllegalArgumentException("Not a resample window: " + value);
+        }
+        return Long.parseLong(window) * unit;
+    }
+
+    @Override
+    public void handle(DataType sample) throws IOException {
+        if (sample.getClass() != type) {
+            type = sample.getClass();
+            handler = DataTypeHandler.forType(type);
+        }
+        long start = Math.floorDiv(sample.getDateTime(), window) * window;
+        int values = Math.max(0, handler.getValueCount(sample));
+        // a window is also closed when the samples change their number of elements
+        if (count > 0 && (start != windowStart || values != width)) {
+            flush();
+        }
+        if (count == 0) {
+            windowStart = start;
+            width = values;
+            if (mean.length < width) {
+                mean = new double[width];
+                m2 = new double[width];
+                min = new double[width];
+                max = new double[width];
+            }
+        }
+        count++;
+        for (int i = 0; i < width; i++) {
+            double x = handler.getValue(sample, i);
+            if (count == 1) {
+                mean[i] = x;
+                m2[i] = 0;
+                min[i] = x;
+                max[i] = x;
+            } else {
+                double delta = x - mean[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (x - mean[i]);
+                min[i] = Math.min(min[i], x);
+                max[i] = Math.max(max[i], x);
+            }
+        }
+    }
+
+    /**
+     * Hand the current window to the next handler.  Call once after the last sample of the data stream.
+     *
+     * @throws IOException if the window cannot be written
+     */
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        double[] aggregates = new double[1 + AGGREGATES * width];
+        aggregates[0] = count;
+        for (int i = 0; i < width; i++) {
+            int offset = 1 + AGGREGATES * i;
+            aggregates[offset] = mean[i];
+            aggregates[offset + 1] = min[i];
+            aggregates[offset + 2] = max[i];
+            // population standard deviation, 0 for a single sample
+            aggregates[offset + 3] = Math.sqrt(m2[i] / count);
+        }
+        count = 0;
+        next.handle(new DataTypeDoubleArray(windowStart, aggregates));
+    }
+}
@@ -0,0 +1,385 @@
+package org.md2k.datakitapi.datatype;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.DefaultArraySerializers;
+import com.esotericsoftware.kryo.serializers.DefaultSerializers;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.google.gson.JsonArray;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * Kryo serializers for the DataType classes.  They read and write the same bytes as the FieldSerializer that DataKit
+ * uses (fields in alphabetical order: dateTime, offset, sample, with variable length longs and ints) but access the
+ * fields directly instead of through reflection.
+ */
+public class DataTypeSerializers {
+
+    private static final Serializer<String> STRING = new DefaultSerializers.StringSerializer();
+    private static final Serializer<boolean[]> BOOLEAN_ARRAY = new DefaultArraySerializers.BooleanArraySerializer();
+    private static final Serializer<byte[]> BYTE_ARRAY = new DefaultArraySerializers.ByteArraySerializer();
+    private static final Serializer<double[]> DOUBLE_ARRAY = new DefaultArraySerializers.DoubleArraySerializer();
+    private static final Serializer<float[]> FLOAT_ARRAY = new DefaultArraySerializers.FloatArraySerializer();
+    private static final Serializer<int[]> INT_ARRAY = new DefaultArraySerializers.IntArraySerializer();
+    private static final Serializer<long[]> LONG_ARRAY = new DefaultArraySerializers.LongArraySerializer();
+    private static final Serializer<String[]> STRING_ARRAY = new DefaultArraySerializers.StringArraySerializer();
+
+    /**
+     * Register the DataType serializers with a Kryo instance.  The classes are registered by name, so class names are
+     * still written and read exactly as DataKit stores them.
+     *
+     * @param kryo Kryo instance to configure
+     */
+    public static void register(Kryo kryo) {
+        register(kryo, DataTypeBoolean.class, new DataTypeBooleanSerializer());
+        register(kryo, DataTypeBooleanArray.class, new DataTypeBooleanArraySerializer());
+        register(kryo, DataTypeByte.class, new DataTypeByteSerializer());
+        register(kryo, DataTypeByteArray.class, new DataTypeByteArraySerializer());
+        register(kryo, DataTypeDouble.class, new DataTypeDoubleSerializer());
+        register(kryo, DataTypeDoubleArray.class, new DataTypeDoubleArraySerializer());
+        register(kryo, DataTypeFloat.class, new DataTypeFloatSerializer());
+        register(kryo, DataTypeFloatArray.class, new DataTypeFloatArraySerializer());
+        register(kryo, DataTypeInt.class, new DataTypeIntSerializer());
+        register(kryo, DataTypeIntArray.class, new DataTypeIntArraySerializer());
+        register(kryo, DataTypeJSONObject.class, new DataTypeJSONObjectSerializer());
+        register(kryo, DataTypeJSONObjectArray.class, new DataTypeJSONObjectArraySerializer());
+        register(kryo, DataTypeLong.class, new DataTypeLongSerializer());
+        register(kryo, DataTypeLongArray.class, new DataTypeLongArraySerializer());
+        register(kryo, DataTypeString.class, new DataTypeStringSerializer());
+        register(kryo, DataTypeStringArray.class, new DataTypeStringArraySerializer());
+    }
+
+    private static <T> void register(Kryo kryo, Class<T> type, Serializer<T> serializer) {
+        kryo.getClassResolver().register(new Registration(type, serializer, DefaultClassResolver.NAME));
+    }
+
+    /**
+     * Base serializer handling the fields common to all DataType classes
+     */
+    abstract static class DataTypeSerializer<T extends DataType> extends Serializer<T> {
+
+        @Override
+        public void write(Kryo kryo, Output output, T dt) {
+            output.writeLong(dt.dateTime, false);
+            output.writeLong(dt.offset, false);
+            writeSample(kryo, output, dt);
+        }
+
+        @Override
+        public T read(Kryo kryo, Input input, Class<T> type) {
+            T dt = create();
+            kryo.reference(dt);
+            dt.dateTime = input.readLong(false);
+            dt.offset = input.readLong(false);
+            readSample(kryo, input, dt);
+            return dt;
+        }
+
+        abstract T create();
+
+        abstract void writeSample(Kryo kryo, Output output, T dt);
+
+        abstract void readSample(Kryo kryo, Input input, T dt);
+    }
+
+    static class DataTypeBooleanSerializer extends DataTypeSerializer<DataTypeBoolean> {
+        @Override
+        DataTypeBoolean create() {
+            return new DataTypeBoolean();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeBoolean dt) {
+            output.writeBoolean(dt.sample);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeBoolean dt) {
+            dt.sample = input.readBoolean();
+        }
+    }
+
+    static class DataTypeBooleanArraySerializer extends DataTypeSerializer<DataTypeBooleanArray> {
+        @Override
+        DataTypeBooleanArray create() {
+            return new DataTypeBooleanArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeBooleanArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, BOOLEAN_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeBooleanArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, boolean[].class, BOOLEAN_ARRAY);
+        }
+    }
+
+    static class DataTypeByteSerializer extends DataTypeSerializer<DataTypeByte> {
+        @Override
+        DataTypeByte create() {
+            return new DataTypeByte();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeByte dt) {
+            output.writeByte(dt.sample);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeByte dt) {
+            dt.sample = input.readByte();
+        }
+    }
+
+    static class DataTypeByteArraySerializer extends DataTypeSerializer<DataTypeByteArray> {
+        @Override
+        DataTypeByteArray create() {
+            return new DataTypeByteArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeByteArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, BYTE_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeByteArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, byte[].class, BYTE_ARRAY);
+        }
+    }
+
+    static class DataTypeDoubleSerializer extends DataTypeSerializer<DataTypeDouble> {
+        @Override
+        DataTypeDouble create() {
+            return new DataTypeDouble();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeDouble dt) {
+            output.writeDouble(dt.sample);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeDouble dt) {
+            dt.sample = input.readDouble();
+        }
+    }
+
+    static class DataTypeDoubleArraySerializer extends DataTypeSerializer<DataTypeDoubleArray> {
+        @Override
+        DataTypeDoubleArray create() {
+            return new DataTypeDoubleArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeDoubleArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, DOUBLE_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeDoubleArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, double[].class, DOUBLE_ARRAY);
+        }
+    }
+
+    static class DataTypeFloatSerializer extends DataTypeSerializer<DataTypeFloat> {
+        @Override
+        DataTypeFloat create() {
+            return new DataTypeFloat();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeFloat dt) {
+            output.writeFloat(dt.sample);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeFloat dt) {
+            dt.sample = input.readFloat();
+        }
+    }
+
+    static class DataTypeFloatArraySerializer extends DataTypeSerializer<DataTypeFloatArray> {
+        @Override
+        DataTypeFloatArray create() {
+            return new DataTypeFloatArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeFloatArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, FLOAT_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeFloatArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, float[].class, FLOAT_ARRAY);
+        }
+    }
+
+    static class DataTypeIntSerializer extends DataTypeSerializer<DataTypeInt> {
+        @Override
+        DataTypeInt create() {
+            return new DataTypeInt();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeInt dt) {
+            output.writeInt(dt.sample, false);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeInt dt) {
+            dt.sample = input.readInt(false);
+        }
+    }
+
+    static class DataTypeIntArraySerializer extends DataTypeSerializer<DataTypeIntArray> {
+        @Override
+        DataTypeIntArray create() {
+            return new DataTypeIntArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeIntArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, INT_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeIntArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, int[].class, INT_ARRAY);
+        }
+    }
+
+    static class DataTypeJSONObjectSerializer extends DataTypeSerializer<DataTypeJSONObject> {
+        @Override
+        DataTypeJSONObject create() {
+            return new DataTypeJSONObject();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeJSONObject dt) {
+            kryo.writeObjectOrNull(output, dt.sample, STRING);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeJSONObject dt) {
+            dt.sample = kryo.readObjectOrNull(input, String.class, STRING);
+        }
+    }
+
+    static class DataTypeJSONObjectArraySerializer extends DataTypeSerializer<DataTypeJSONObjectArray> {
+        @Override
+        DataTypeJSONObjectArray create() {
+            return new DataTypeJSONObjectArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeJSONObjectArray dt) {
+            // JsonArray is final, so FieldSerializer writes the field without its class
+            kryo.writeObjectOrNull(output, dt.sample, JsonArray.class);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeJSONObjectArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, JsonArray.class);
+        }
+    }
+
+    static class DataTypeLongSerializer extends DataTypeSerializer<DataTypeLong> {
+        @Override
+        DataTypeLong create() {
+            return new DataTypeLong();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeLong dt) {
+            output.writeLong(dt.sample, false);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeLong dt) {
+            dt.sample = input.readLong(false);
+        }
+    }
+
+    static class DataTypeLongArraySerializer extends DataTypeSerializer<DataTypeLongArray> {
+        @Override
+        DataTypeLongArray create() {
+            return new DataTypeLongArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeLongArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, LONG_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeLongArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, long[].class, LONG_ARRAY);
+        }
+    }
+
+    static class DataTypeStringSerializer extends DataTypeSerializer<DataTypeString> {
+        @Override
+        DataTypeString create() {
+            return new DataTypeString();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeString dt) {
+            kryo.writeObjectOrNull(output, dt.sample, STRING);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeString dt) {
+            dt.sample = kryo.readObjectOrNull(input, String.class, STRING);
+        }
+    }
+
+    static class DataTypeStringArraySerializer extends DataTypeSerializer<DataTypeStringArray> {
+        @Override
+        DataTypeStringArray create() {
+            return new DataTypeStringArray();
+        }
+
+        @Override
+        void writeSample(Kryo kryo, Output output, DataTypeStringArray dt) {
+            kryo.writeObjectOrNull(output, dt.sample, STRING_ARRAY);
+        }
+
+        @Override
+        void readSample(Kryo kryo, Input input, DataTypeStringArray dt) {
+            dt.sample = kryo.readObjectOrNull(input, String[].class, STRING_ARRAY);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.md2k.datakitapi.source;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.DefaultSerializers;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import org.md2k.datakitapi.source.application.Application;
+import org.md2k.datakitapi.source.datasource.DataSource;
+import org.md2k.datakitapi.source.datasource.DataSourceBuilder;
+import org.md2k.datakitapi.source.platform.Platform;
+import org.md2k.datakitapi.source.platformapp.PlatformApp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * Kryo serializers for DataSource and the Platform, PlatformApp and Application objects it references.  They read
+ * and write the same bytes as the FieldSerializer that DataKit uses, with the fields of the whole class hierarchy in
+ * alphabetical order, without reflective field access.
+ */
+public class SourceSerializers {
+
+    private static final Serializer<String> STRING = new DefaultSerializers.StringSerializer();
+    private static final Class<?>[] METADATA_GENERICS = {String.class, String.class};
+
+    /**
+     * Register the source serializers with a Kryo instance.  The classes are registered by name, so class names are
+     * still written and read exactly as DataKit stores them.
+     *
+     * @param kryo Kryo instance to configure
+     */
+    public static void register(Kryo kryo) {
+        register(kryo, DataSource.class, new DataSourceSerializer());
+        register(kryo, Platform.class, new AbstractObjectSerializer<Platform>() {
+            @Override
+            Platform create() {
+                return new Platform();
+            }
+        });
+        register(kryo, PlatformApp.class, new AbstractObjectSerializer<PlatformApp>() {
+            @Override
+            PlatformApp create() {
+                return new PlatformApp();
+            }
+        });
+        register(kryo, Application.class, new AbstractObjectSerializer<Application>() {
+            @Override
+            Application create() {
+                return new Application();
+            }
+        });
+    }
+
+    private static <T> void register(Kryo kryo, Class<T> type, Serializer<T> serializer) {
+        kryo.getClassResolver().register(new Registration(type, serializer, DefaultClassResolver.NAME));
+    }
+
+    /**
+     * Write a HashMap&lt;String, String&gt; field.  FieldSerializer passes the String generics to the map serializer, so
+     * keys and values are written without their class.
+     */
+    static void writeMetadata(Kryo kryo, Output output, HashMap<String, String> metadata) {
+        if (metadata == null) {
+            kryo.writeClass(output, null);
+            return;
+        }
+        Registration registration = kryo.writeClass(output, metadata.getClass());
+        Serializer<?> serializer = registration.getSerializer();
+        serializer.setGenerics(kryo, METADATA_GENERICS);
+        kryo.writeObject(output, metadata, serializer);
+    }
+
+    /**
+     * Read a HashMap&lt;String, String&gt; field written by writeMetadata
+     */
+    @SuppressWarnings("unchecked")
+    static HashMap<String, String> readMetadata(Kryo kryo, Input input) {
+        Registration registration = kryo.readClass(input);
+        if (registration == null) {
+            return null;
+        }
+        Serializer<?> serializer = registration.getSerializer();
+        serializer.setGenerics(kryo, METADATA_GENERICS);
+        return (HashMap<String, String>) kryo.readObject(input, registration.getType(), serializer);
+    }
+
+    /**
+     * Serializer for AbstractObject subclasses without fields of their own: id, metadata, type
+     */
+    abstract static class AbstractObjectSerializer<T extends AbstractObject> extends Serializer<T> {
+
+        @Override
+        public void write(Kryo kryo, Output output, T object) {
+            kryo.writeObjectOrNull(output, object.id, STRING);
+            writeMetadata(kryo, output, object.metadata);
+            kryo.writeObjectOrNull(output, object.type, STRING);
+        }
+
+        @Override
+        public T read(Kryo kryo, Input input, Class<T> type) {
+            T object = create();
+            kryo.reference(object);
+            object.id = kryo.readObjectOrNull(input, String.class, STRING);
+            object.metadata = readMetadata(kryo, input);
+            object.type = kryo.readObjectOrNull(input, String.class, STRING);
+            return object;
+        }
+
+        abstract T create();
+    }
+
+    /**
+     * Serializer for DataSource: application, dataDescriptors, id, metadata, persistent, platform, platformApp, type
+     */
+    static class DataSourceSerializer extends Serializer<DataSource> {
+
+        @Override
+        public void write(Kryo kryo, Output output, DataSource dataSource) {
+            kryo.writeClassAndObject(output, dataSource.getApplication());
+            kryo.writeClassAndObject(output, dataSource.getDataDescriptors());
+            kryo.writeObjectOrNull(output, dataSource.id, STRING);
+            writeMetadata(kryo, output, dataSource.metadata);
+            output.writeBoolean(dataSource.isPersistent());
+            kryo.writeClassAndObject(output, dataSource.getPlatform());
+            kryo.writeClassAndObject(output, dataSource.getPlatformApp());
+            kryo.writeObjectOrNull(output, dataSource.type, STRING);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public DataSource read(Kryo kryo, Input input, Class<DataSource> type) {
+            DataSourceBuilder builder = new DataSourceBuilder();
+            builder.setApplication((Application) kryo.readClassAndObject(input));
+            builder.setDataDescriptors((ArrayList<HashMap<String, String>>) kryo.readClassAndObject(input));
+            builder.setId(kryo.readObjectOrNull(input, String.class, STRING));
+            builder.setMetadata(readMetadata(kryo, input));
+            builder.setPersistent(input.readBoolean());
+            builder.setPlatform((Platform) kryo.readClassAndObject(input));
+            builder.setPlatformApp((PlatformApp) kryo.readClassAndObject(input));
+            builder.setType(kryo.readObjectOrNull(input, String.class, STRING));
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import org.md2k.datakitapi.datatype.*;
+import org.md2k.datakitapi.source.application.ApplicationBuilder;
+import org.md2k.datakitapi.source.datasource.DataSourceBuilder;
+import org.md2k.datakitapi.source.platform.PlatformBuilder;
+import org.md2k.datakitapi.source.platformapp.PlatformAppBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the registered serializers against blobs encoded by a plain Kryo, which uses FieldSerializer like DataKit
+ */
+public class KryoFactoryTest {
+
+    private static final long TIMESTAMP = 1500000000000L;
+
+    @Test
+    public void decodesScalarSamples() {
+        assertRoundTrip(new DataTypeBoolean(TIMESTAMP, true));
+        assertRoundTrip(new DataTypeByte(TIMESTAMP, (byte) -7));
+        assertRoundTrip(new DataTypeDouble(TIMESTAMP, Math.PI));
+        assertRoundTrip(new DataTypeFloat(TIMESTAMP, 2.5f));
+        assertRoundTrip(new DataTypeInt(TIMESTAMP, -123456));
+        assertRoundTrip(new DataTypeLong(TIMESTAMP, Long.MIN_VALUE));
+        assertRoundTrip(new DataTypeString(TIMESTAMP, "walking"));
+        assertRoundTrip(new DataTypeString(TIMESTAMP, null));
+    }
+
+    @Test
+    public void decodesArraySamples() {
+        assertRoundTrip(new DataTypeBooleanArray(TIMESTAMP, new boolean[]{true, false}));
+        assertRoundTrip(new DataTypeByteArray(TIMESTAMP, new byte[]{1, -2, 3}));
+        assertRoundTrip(new DataTypeDoubleArray(TIMESTAMP, new double[]{0.1, -9.81, Double.NaN}));
+        assertRoundTrip(new DataTypeFloatArray(TIMESTAMP, new float[]{1.5f, -0.25f}));
+        assertRoundTrip(new DataTypeIntArray(TIMESTAMP, new int[]{1, -1, Integer.MAX_VALUE}));
+        assertRoundTrip(new DataTypeLongArray(TIMESTAMP, new long[]{Long.MAX_VALUE, 0}));
+        assertRoundTrip(new DataTypeStringArray(TIMESTAMP, new String[]{"a", null, "c"}));
+    }
+
+    @Test
+    public void decodesEmptyAndMissingArrays() {
+        assertRoundTrip(new DataTypeDoubleArray(TIMESTAMP, new double[0]));
+        assertRoundTrip(new DataTypeStringArray(TIMESTAMP, new String[0]));
+        assertRoundTrip(new DataTypeBooleanArray());
+        assertRoundTrip(new DataTypeByteArray());
+        assertRoundTrip(new DataTypeDoubleArray());
+        assertRoundTrip(new DataTypeFloatArray());
+        assertRoundTrip(new DataTypeIntArray());
+        assertRoundTrip(new DataTypeLongArray());
+        assertRoundTrip(new DataTypeStringArray());
+    }
+
+    @Test
+    public void decodesJSONSamples() {
+        JsonObject object = new JsonObject();
+        object.addProperty("question_0", 4);
+        object.addProperty("answer", "yes");
+        assertRoundTrip(new DataTypeJSONObject(TIMESTAMP, object));
+        assertRoundTrip(new DataTypeJSONObject());
+
+        // Kryo cannot instantiate JsonPrimitive, so only arrays of JSON containers can be decoded at all
+        JsonArray array = new JsonArray();
+        array.add(new JsonObject());
+        array.add(new JsonArray());
+        assertRoundTrip(new DataTypeJSONObjectArray(TIMESTAMP, array));
+        assertRoundTrip(new DataTypeJSONObjectArray(TIMESTAMP, new JsonArray()));
+        assertRoundTrip(new DataTypeJSONObjectArray());
+    }
+
+    @Test
+    public void decodesDataSources() {
+        HashMap<String, String> descriptor = new HashMap<String, String>();
+        descriptor.put("NAME", "Accelerometer X");
+        descriptor.put("UNIT", "g");
+        ArrayList<HashMap<String, String>> descriptors = new ArrayList<HashMap<String, String>>();
+        descriptors.add(descriptor);
+
+        assertRoundTrip(new DataSourceBuilder()
+                .setType("ACCELEROMETER")
+                .setId("1")
+                .setMetadata("NAME", "Accelerometer")
+                .setPlatform(new PlatformBuilder().setType("PHONE").setId("PHONE").setMetadata("NAME", "Phone").build())
+                .setPlatformApp(new PlatformAppBuilder().setType("AUTOSENSE").build())
+                .setApplication(new ApplicationBuilder().setType("org.md2k.phonesensor").setId("org.md2k.phonesensor").build())
+                .setPersistent(false)
+                .setDataDescriptors(descriptors)
+                .build());
+        assertRoundTrip(new DataSourceBuilder().build());
+    }
+
+    /**
+     * Encode an object with a plain Kryo, decode it through KryoFactory and check that re-encoding the result with
+     * either Kryo gives the same bytes
+     */
+    private static void assertRoundTrip(Object object) {
+        byte[] blob = encode(new Kryo(), object);
+        Object decoded = KryoFactory.create().readClassAndObject(new Input(blob));
+        assertEquals(object.getClass(), decoded.getClass());
+        assertArrayEquals(object.getClass().getSimpleName(), blob, encode(KryoFactory.create(), decoded));
+        assertArrayEquals(object.getClass().getSimpleName(), blob, encode(new Kryo(), decoded));
+    }
+
+    private static byte[] encode(Kryo kryo, Object object) {
+        Output output = new Output(256, -1);
+        kryo.writeClassAndObject(output, object);
+        return output.toBytes();
+    }
+}
@@ -0,0 +1,247 @@
+package org.md2k.dataexporter;
+
+/*
+ * Copyright (c) 2016, The University of Memphis, MD2K Center
+ * - Timothy Hnat <twhnat@memphis.edu>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.md2k.datakitapi.datatype.DataTypeDoubleArray;
+import org.md2k.datakitapi.source.application.ApplicationBuilder;
+import org.md2k.datakitapi.source.datasource.DataSourceBuilder;
+import org.md2k.datakitapi.source.platform.PlatformBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Publishes a data stream to a local stand-in for the Cerebral Cortex webservice that fails one upload, then publishes
+ * it again with the same upload journal and checks which chunks are sent the second time, or checks that a server
+ * error is retried with the same chunk
+ */
+public class PublishResumeTest {
+
+    private static final int STREAM_ID = 1;
+    private static final int ROWS = 1000;
+    private static final int CHUNK_ROWS = 100;
+    private static final long START_TIME = 1500000000000L;
+    private static final Pattern HASH = Pattern.compile("name=\"hash\".*?\r\n\r\n([0-9a-f]{40})", Pattern.DOTALL);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int failAt = -1;
+    private volatile int failStatus = 400;
+    private volatile String failed = null;
+    private HttpServer server;
+    private String url;
+    private File database;
+
+    @Before
+    public void setUp() throws Exception {
+        database = folder.newFile("publish.db");
+        createDatabase(database);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    body.write(buffer, 0, n);
+                }
+                Matcher matcher = HASH.matcher(new String(body.toByteArray(), StandardCharsets.ISO_8859_1));
+                String hash = matcher.find() ? matcher.group(1) : null;
+                int status = 200;
+                synchronized (received) {
+                    received.add(hash);
+                    if (received.size() == failAt) {
+                        failed = hash;
+                        status = failStatus;
+                    }
+                }
+                byte[] response = (status == 200 ? "{}" : "failed on purpose").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void resendsOnlyTheFailedAndLaterChunks() throws Exception {
+        List<String> all = publishWithoutFailure();
+        assertEquals(ROWS / CHUNK_ROWS, all.size());
+        assertEquals(all.size(), new HashSet<String>(all).size());
+        assertFalse(all.contains(null));
+
+        File journal = folder.newFile("publish.journal");
+        failAt = 4;
+        assertFalse(publish(journal, 1));
+        assertEquals(all.subList(0, 4), received);
+        assertEquals(all.get(3), failed);
+
+        received.clear();
+        failAt = -1;
+        assertTrue(publish(journal, 1));
+        assertEquals(all.subList(3, all.size()), received);
+
+        received.clear();
+        assertTrue(publish(journal, 1));
+        assertEquals(Collections.<String>emptyList(), received);
+    }
+
+    @Test
+    public void skipsChunksAcknowledgedOutOfOrder() throws Exception {
+        List<String> all = publishWithoutFailure();
+
+        File journal = folder.newFile("publish.journal");
+        failAt = 2;
+        assertFalse(publish(journal, 4));
+        Set<String> acknowledged = new HashSet<String>(received);
+        acknowledged.remove(failed);
+
+        received.clear();
+        failAt = -1;
+        assertTrue(publish(journal, 4));
+        Set<String> expected = new HashSet<String>(all);
+        expected.removeAll(acknowledged);
+        assertEquals(expected.size(), received.size());
+        assertEquals(expected, new HashSet<String>(received));
+        assertTrue(received.contains(failed));
+    }
+
+    @Test
+    public void retriesServerErrorsWithTheSameChunk() throws Exception {
+        List<String> all = publishWithoutFailure();
+
+        File journal = folder.newFile("publish.journal");
+        failAt = 3;
+        failStatus = 502;
+        assertTrue(publish(journal, 1));
+        List<String> expected = new ArrayList<String>(all);
+        expected.add(2, all.get(2));
+        assertEquals(expected, received);
+    }
+
+    /**
+     * @return hashes of all chunks of the data stream, in _id order
+     */
+    private List<String> publishWithoutFailure() throws IOException {
+        assertTrue(publish(null, 1));
+        List<String> all = new ArrayList<String>(received);
+        received.clear();
+        return all;
+    }
+
+    private boolean publish(File journal, int concurrency) throws IOException {
+        ChunkUploader uploader = new ChunkUploader(database.getPath(), concurrency);
+        UploadJournal uploadJournal = journal == null ? null : new UploadJournal(journal.getPath());
+        DataExport dataExport = new DataExport(database.getPath());
+        try {
+            dataExport.setUploader(uploader);
+            dataExport.setUploadJournal(uploadJournal);
+            dataExport.setPublishBufferSize(CHUNK_ROWS);
+            return dataExport.publishGzipJSONData(url, STREAM_ID);
+        } finally {
+            dataExport.close();
+            uploader.close();
+            if (uploadJournal != null) {
+                uploadJournal.close();
+            }
+        }
+    }
+
+    /**
+     * Write a DataKit database with one accelerometer stream, encoded by a plain Kryo like DataKit does
+     */
+    private static void createDatabase(File file) throws SQLException {
+        Kryo kryo = new Kryo();
+        Output output = new Output(1024, -1);
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            connection.createStatement().execute("create table datasources (ds_id INTEGER PRIMARY KEY autoincrement, datasource_id TEXT, datasource_type TEXT, platform_id TEXT, platform_type TEXT, platformapp_id TEXT, platformapp_type TEXT, application_id TEXT, application_type TEXT, creation_time LONG, datasource BLOB not null)");
+            connection.createStatement().execute("create table data (_id INTEGER PRIMARY KEY autoincrement, datasource_id TEXT not null, datetime LONG, sample BLOB not null, cc_sync INTEGER DEFAULT 0)");
+            connection.setAutoCommit(false);
+
+            kryo.writeClassAndObject(output, new DataSourceBuilder().setType("ACCELEROMETER")
+                    .setPlatform(new PlatformBuilder().setType("PHONE").setId("PHONE").build())
+                    .setApplication(new ApplicationBuilder().setType("org.md2k.test").setId("org.md2k.test").build())
+                    .build());
+            PreparedStatement dataSource = connection.prepareStatement("insert into datasources (datasource_type, platform_id, platform_type, application_id, application_type, creation_time, datasource) values ('ACCELEROMETER', 'PHONE', 'PHONE', 'org.md2k.test', 'org.md2k.test', ?, ?)");
+            dataSource.setLong(1, START_TIME);
+            dataSource.setBytes(2, output.toBytes());
+            dataSource.executeUpdate();
+
+            PreparedStatement data = connection.prepareStatement("insert into data (datasource_id, datetime, sample) values (?, ?, ?)");
+            for (int i = 0; i < ROWS; i++) {
+                long timestamp = START_TIME + i * 10;
+                output.clear();
+                kryo.writeClassAndObject(output, new DataTypeDoubleArray(timestamp, new double[]{i, -i, i * 0.5}));
+                data.setInt(1, STREAM_ID);
+                data.setLong(2, timestamp);
+                data.setBytes(3, output.toBytes());
+                data.addBatch();
+            }
+            data.executeBatch();
+            connection.commit();
+        } finally {
+            connection.close();
+        }
+    }
+}